@@ -0,0 +1,55 @@
+package com.jlox;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
+// Benchmark inputs. SMALL, MEDIUM and ARITH are checked in under
+// resources/corpus; LARGE is MEDIUM repeated until it is several megabytes,
+// built at setup time rather than committed. Redefining globals is legal, so
+// the result still runs cleanly. ARITH is almost all number operators, for
+// measuring how operator sites dispatch (see Specialization).
+public enum Corpus {
+    SMALL,
+    MEDIUM,
+    LARGE,
+    ARITH;
+
+    private static final int LARGE_SIZE = 8 * 1024 * 1024;
+
+    String source() {
+        switch(this) {
+            case SMALL:
+                return read("small.lox");
+            case MEDIUM:
+                return read("medium.lox");
+            case ARITH:
+                return read("arith.lox");
+            default:
+                String medium = read("medium.lox");
+                StringBuilder builder = new StringBuilder(LARGE_SIZE + medium.length());
+                while(builder.length() < LARGE_SIZE)
+                    builder.append(medium);
+                return builder.toString();
+        }
+    }
+
+    // The interpreter prints straight to System.out; benchmarks measure the
+    // engine, not the terminal.
+    static void silenceOutput() {
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    private static String read(String name) {
+        try (InputStream in = Corpus.class.getResourceAsStream("/corpus/" + name)) {
+            if(in == null)
+                throw new IllegalStateException("Missing corpus file " + name);
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
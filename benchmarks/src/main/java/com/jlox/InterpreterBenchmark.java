@@ -0,0 +1,66 @@
+package com.jlox;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Runs an already parsed program in a fresh Interpreter per invocation. The
+// statement list is reused, so operator sites stay specialized across
+// invocations the way they would inside a long-running script. CLOSURE
+// compiles the program once, at setup, and runs the same closures in a fresh
+// ClosureInterpreter per invocation, so they stay specialized too. With
+// jit, TREE compiles blocks once they are hot (see Jit), which only happens
+// because the program is run again and again here.
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InterpreterBenchmark {
+
+    @Param({"SMALL", "MEDIUM", "LARGE", "ARITH"})
+    public Corpus corpus;
+
+    @Param({"TREE", "CLOSURE", "FLAT"})
+    public LoxEngine.Backend engine;
+
+    @Param({"true"})
+    public boolean jit;
+
+    private final ErrorHandler errors = new ErrorHandler(System.err);
+
+    private List<Stmt> statements;
+    private ClosureInterpreter.Exec[] closures;
+    private FlatAst ast;
+
+    @Setup
+    public void setup() {
+        Corpus.silenceOutput();
+        statements = new Parser(new Scanner(corpus.source(), errors).scanTokens(), errors).parse();
+        new Resolver(errors).resolve(statements);
+        closures = ClosureInterpreter.compile(statements);
+        ast = FlatParser.parse(corpus.source(), errors);
+    }
+
+    @Benchmark
+    public void interpret() {
+        if(engine == LoxEngine.Backend.CLOSURE)
+            new ClosureInterpreter(OutputSink.of(System.out, OutputSink.LINE), errors).run(closures);
+        else if(engine == LoxEngine.Backend.FLAT)
+            new FlatInterpreter(OutputSink.of(System.out, OutputSink.LINE), errors).interpret(ast);
+        else
+            new Interpreter(OutputSink.of(System.out, OutputSink.LINE), errors, jit).interpret(statements);
+    }
+}
@@ -0,0 +1,48 @@
+package com.jlox;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark {
+
+    @Param({"SMALL", "MEDIUM", "LARGE"})
+    public Corpus corpus;
+
+    private final ErrorHandler errors = new ErrorHandler(System.err);
+
+    private TokenBuffer tokens;
+
+    @Setup
+    public void setup() {
+        tokens = new Scanner(corpus.source(), errors).scanTokens();
+    }
+
+    @Benchmark
+    public List<Stmt> parse() {
+        return new Parser(tokens, errors).parse();
+    }
+
+    // also does Resolver's work, which parse() leaves out
+    @Benchmark
+    public FlatAst parseFlat() {
+        return new FlatParser(tokens, errors).parse();
+    }
+}
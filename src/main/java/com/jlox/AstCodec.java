@@ -0,0 +1,369 @@
+package com.jlox;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Compact binary encoding of a parsed program, used by ScriptCache.
+//
+//   payload := strings statementCount statement*
+//   strings := count (length char*)*            every lexeme and string value
+//   token   := type lexeme line column value    lexeme is a string index
+//   value   := NIL | TRUE | FALSE | NUMBER f64 | STRING index
+//
+// Counts, indices, lines and columns are unsigned varints. Nodes start with a
+// one-byte tag; a block is followed by its statement count. Resolver output
+// is not stored, it is recomputed on every run. Any change to Expr, Stmt or
+// Token must bump ScriptCache.VERSION.
+//
+// Expressions are written and read with explicit stacks rather than by
+// recursion, since they may nest as deeply as Parser allows.
+class AstCodec implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+
+    private static final int STMT_EXPRESSION = 0;
+    private static final int STMT_PRINT = 1;
+    private static final int STMT_VAR = 2;
+    private static final int STMT_BLOCK = 3;
+
+    private static final int EXPR_ASSIGN = 0;
+    private static final int EXPR_BINARY = 1;
+    private static final int EXPR_GROUPING = 2;
+    private static final int EXPR_LITERAL = 3;
+    private static final int EXPR_UNARY = 4;
+    private static final int EXPR_VARIABLE = 5;
+
+    private static final int VALUE_NIL = 0;
+    private static final int VALUE_TRUE = 1;
+    private static final int VALUE_FALSE = 2;
+    private static final int VALUE_NUMBER = 3;
+    private static final int VALUE_STRING = 4;
+
+    private static final TokenType[] TYPES = TokenType.values();
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    private final Map<String, Integer> stringIndex = new HashMap<>();
+    private final List<String> strings = new ArrayList<>();
+    // what is still to be written of the expression being encoded: Exprs,
+    // and the operator of a binary whose left operand is on top of it
+    private final ArrayDeque<Object> pending = new ArrayDeque<>();
+
+    static byte[] encode(List<Stmt> statements) {
+        AstCodec codec = new AstCodec();
+        codec.writeVarint(statements.size());
+        for (Stmt statement : statements) {
+            statement.accept(codec);
+        }
+
+        // the string table goes first, so the decoder has it before any node
+        byte[] nodes = codec.out.toByteArray();
+        AstCodec payload = new AstCodec();
+        payload.writeVarint(codec.strings.size());
+        for (String string : codec.strings) {
+            payload.writeVarint(string.length());
+            for (int i = 0; i < string.length(); i++) {
+                char c = string.charAt(i);
+                payload.out.write(c >>> 8);
+                payload.out.write(c);
+            }
+        }
+        payload.out.write(nodes, 0, nodes.length);
+        return payload.out.toByteArray();
+    }
+
+    static List<Stmt> decode(ByteBuffer in) {
+        return new Decoder(in).program();
+    }
+
+    private void write(Expr expr) {
+        pending.push(expr);
+        while(!pending.isEmpty()) {
+            Object next = pending.pop();
+            if(next instanceof Token)
+                writeToken((Token)next);
+            else
+                ((Expr)next).accept(this);
+        }
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        out.write(STMT_EXPRESSION);
+        write(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        out.write(STMT_PRINT);
+        writeToken(stmt.keyword);
+        write(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        out.write(STMT_VAR);
+        writeToken(stmt.name);
+        out.write(stmt.initializer != null ? 1 : 0);
+        if(stmt.initializer != null)
+            write(stmt.initializer);
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        out.write(STMT_BLOCK);
+        writeVarint(stmt.statements.size());
+        for (Stmt statement : stmt.statements)
+            statement.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        out.write(EXPR_ASSIGN);
+        writeToken(expr.name);
+        pending.push(expr.value);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        out.write(EXPR_BINARY);
+        pending.push(expr.right);
+        pending.push(expr.operator);
+        pending.push(expr.left);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        out.write(EXPR_GROUPING);
+        pending.push(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        out.write(EXPR_LITERAL);
+        writeValue(expr.value);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        out.write(EXPR_UNARY);
+        writeToken(expr.operator);
+        pending.push(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        out.write(EXPR_VARIABLE);
+        writeToken(expr.name);
+        return null;
+    }
+
+    private void writeToken(Token token) {
+        writeVarint(token.type.ordinal());
+        writeVarint(intern(token.lexeme));
+        writeVarint(token.line);
+        writeVarint(token.column);
+        writeValue(token.literal);
+    }
+
+    private void writeValue(Object value) {
+        if(value == null) {
+            out.write(VALUE_NIL);
+        } else if(value instanceof Boolean) {
+            out.write((boolean)value ? VALUE_TRUE : VALUE_FALSE);
+        } else if(value instanceof Double) {
+            out.write(VALUE_NUMBER);
+            long bits = Double.doubleToRawLongBits((double)value);
+            for (int shift = 56; shift >= 0; shift -= 8)
+                out.write((int)(bits >>> shift));
+        } else {
+            out.write(VALUE_STRING);
+            writeVarint(intern(value.toString()));
+        }
+    }
+
+    private int intern(String string) {
+        Integer index = stringIndex.get(string);
+        if(index == null) {
+            index = strings.size();
+            strings.add(string);
+            stringIndex.put(string, index);
+        }
+        return index;
+    }
+
+    private void writeVarint(int value) {
+        while((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    // Reads a payload back. Malformed input surfaces as a RuntimeException
+    // (buffer underflow, bad index, unknown tag), which ScriptCache treats as a
+    // corrupt entry.
+    private static final class Decoder {
+        private final ByteBuffer in;
+        private String[] strings;
+
+        Decoder(ByteBuffer in) {
+            this.in = in;
+        }
+
+        List<Stmt> program() {
+            strings = new String[readVarint()];
+            for (int i = 0; i < strings.length; i++) {
+                char[] chars = new char[readVarint()];
+                for (int j = 0; j < chars.length; j++)
+                    chars[j] = in.getChar();
+                strings[i] = new String(chars);
+            }
+
+            int count = readVarint();
+            List<Stmt> statements = new ArrayList<>(count);
+            for (int i = 0; i < count; i++)
+                statements.add(statement());
+
+            if(in.hasRemaining())
+                throw new IllegalStateException("Trailing bytes after program.");
+            return statements;
+        }
+
+        private Stmt statement() {
+            int tag = in.get();
+            switch(tag) {
+                case STMT_EXPRESSION:
+                    return new Stmt.Expression(expression());
+                case STMT_PRINT: {
+                    Token keyword = token();
+                    return new Stmt.Print(keyword, expression());
+                }
+                case STMT_VAR: {
+                    Token name = token();
+                    Expr initializer = in.get() != 0 ? expression() : null;
+                    return new Stmt.Var(name, initializer);
+                }
+                case STMT_BLOCK: {
+                    int count = readVarint();
+                    List<Stmt> statements = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++)
+                        statements.add(statement());
+                    return new Stmt.Block(statements);
+                }
+                default:
+                    throw new IllegalStateException("Unknown statement tag " + tag + ".");
+            }
+        }
+
+        // An operator still waiting for its operands.
+        private static final class Pending {
+            final int tag;
+            // a binary's operator and left operand are set once read
+            Token token;
+            Expr left;
+
+            Pending(int tag, Token token) {
+                this.tag = tag;
+                this.token = token;
+            }
+        }
+
+        // Reads prefix operators onto a stack until an operand is complete,
+        // then completes as many of them as it can, innermost first.
+        private Expr expression() {
+            ArrayDeque<Pending> pending = new ArrayDeque<>();
+            while(true) {
+                Expr expr;
+                int tag = in.get();
+                switch(tag) {
+                    case EXPR_ASSIGN:
+                    case EXPR_UNARY:
+                        pending.push(new Pending(tag, token()));
+                        continue;
+                    case EXPR_BINARY:
+                    case EXPR_GROUPING:
+                        pending.push(new Pending(tag, null));
+                        continue;
+                    case EXPR_LITERAL:
+                        expr = new Expr.Literal(value());
+                        break;
+                    case EXPR_VARIABLE:
+                        expr = new Expr.Variable(token());
+                        break;
+                    default:
+                        throw new IllegalStateException("Unknown expression tag " + tag + ".");
+                }
+
+                while(true) {
+                    Pending top = pending.peek();
+                    if(top == null)
+                        return expr;
+                    if(top.tag == EXPR_BINARY && top.left == null) {
+                        // the operator is written between the operands
+                        top.left = expr;
+                        top.token = token();
+                        break;
+                    }
+                    pending.pop();
+                    if(top.tag == EXPR_BINARY)
+                        expr = new Expr.Binary(top.left, top.token, expr);
+                    else if(top.tag == EXPR_ASSIGN)
+                        expr = new Expr.Assign(top.token, expr);
+                    else if(top.tag == EXPR_UNARY)
+                        expr = new Expr.Unary(top.token, expr);
+                    else
+                        expr = new Expr.Grouping(expr);
+                }
+            }
+        }
+
+        private Token token() {
+            TokenType type = TYPES[readVarint()];
+            String lexeme = strings[readVarint()];
+            int line = readVarint();
+            int column = readVarint();
+            return new Token(type, lexeme, line, column, value());
+        }
+
+        private Object value() {
+            int tag = in.get();
+            switch(tag) {
+                case VALUE_NIL:
+                    return null;
+                case VALUE_TRUE:
+                    return true;
+                case VALUE_FALSE:
+                    return false;
+                case VALUE_NUMBER:
+                    return Double.longBitsToDouble(in.getLong());
+                case VALUE_STRING:
+                    return strings[readVarint()];
+                default:
+                    throw new IllegalStateException("Unknown value tag " + tag + ".");
+            }
+        }
+
+        private int readVarint() {
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                byte b = in.get();
+                value |= (b & 0x7f) << shift;
+                if((b & 0x80) == 0)
+                    return value;
+            }
+            throw new IllegalStateException("Malformed varint.");
+        }
+    }
+}
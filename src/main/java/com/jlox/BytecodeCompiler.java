@@ -0,0 +1,250 @@
+package com.jlox;
+
+import java.util.Arrays;
+import java.util.List;
+
+// Lowers the statements produced by Parser into a single Chunk for the VM.
+// Operands are evaluated in the same order as Interpreter so side effects and
+// runtime errors happen at the same point in both engines.
+//
+// A local is the value its declaration leaves on the stack, so its stack slot
+// is the depth of its block's first local plus its Resolver slot, minus one
+// for the frame link the tree interpreter keeps in slot 0.
+//
+// Expressions are compiled from a stack of their own instead of by recursion,
+// since they may nest as deeply as Parser allows: an operator is on it twice,
+// to push its operands and then to emit its instruction once they are
+// compiled.
+public class BytecodeCompiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+
+    private Chunk chunk;
+    private int stackDepth = 0;
+    // stack depth at the start of each enclosing block, innermost last
+    private int[] blockBases = new int[8];
+    private int blocks = 0;
+    // expressions still to compile, next on top, and whether each one is an
+    // operator whose operands are already compiled
+    private Expr[] pending = new Expr[16];
+    private boolean[] emitting = new boolean[16];
+    private int count = 0;
+
+    Chunk compile(List<Stmt> statements) {
+        chunk = new Chunk();
+        stackDepth = 0;
+        blocks = 0;
+        count = 0;
+        for (Stmt statement : statements) {
+            statement.accept(this);
+        }
+        emit(OpCode.RETURN, null, 0);
+        return chunk;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        compile(stmt.expression);
+        emit(OpCode.POP, null, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        compile(stmt.expression);
+        emit(OpCode.PRINT, null, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if(stmt.initializer != null)
+            compile(stmt.initializer);
+        else
+            emit(OpCode.NIL, null, 1);
+
+        if(stmt.slot > 0)
+            return null;
+        emitConstant(OpCode.DEFINE_GLOBAL, OpCode.DEFINE_GLOBAL_LONG, stmt.name, -1, stmt.name.lexeme);
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        if(blocks == blockBases.length)
+            blockBases = Arrays.copyOf(blockBases, blocks * 2);
+        blockBases[blocks++] = stackDepth;
+        for (Stmt statement : stmt.statements)
+            statement.accept(this);
+        blocks--;
+
+        int locals = stackDepth - blockBases[blocks];
+        emit(OpCode.END_BLOCK, null, -locals);
+        chunk.writeShort(locals);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        push(expr, true);
+        push(expr.value, false);
+        return null;
+    }
+
+    private void emitAssign(Expr.Assign expr) {
+        if(expr.depth >= 0) {
+            emit(OpCode.SET_LOCAL, null, 0);
+            chunk.writeShort(localSlot(expr.depth, expr.slot));
+            return;
+        }
+        emitConstant(OpCode.SET_GLOBAL, OpCode.SET_GLOBAL_LONG, expr.name, 0, expr.name.lexeme);
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        push(expr, true);
+        push(expr.right, false);
+        push(expr.left, false);
+        return null;
+    }
+
+    private void emitBinary(Expr.Binary expr) {
+        switch(expr.operator.type) {
+            case EQUAL_EQUAL:
+                emit(OpCode.EQUAL, expr.operator, -1);
+                break;
+            case BANG_EQUAL:
+                emit(OpCode.NOT_EQUAL, expr.operator, -1);
+                break;
+            case GREATER:
+                emit(OpCode.GREATER, expr.operator, -1);
+                break;
+            case GREATER_EQUAL:
+                emit(OpCode.GREATER_EQUAL, expr.operator, -1);
+                break;
+            case LESS:
+                emit(OpCode.LESS, expr.operator, -1);
+                break;
+            case LESS_EQUAL:
+                emit(OpCode.LESS_EQUAL, expr.operator, -1);
+                break;
+            case PLUS:
+                emit(OpCode.ADD, expr.operator, -1);
+                break;
+            case MINUS:
+                emit(OpCode.SUBTRACT, expr.operator, -1);
+                break;
+            case STAR:
+                emit(OpCode.MULTIPLY, expr.operator, -1);
+                break;
+            case SLASH:
+                emit(OpCode.DIVIDE, expr.operator, -1);
+                break;
+            default:
+                // the interpreter yields nil for an unknown operator
+                emit(OpCode.POP, null, -1);
+                emit(OpCode.POP, null, -1);
+                emit(OpCode.NIL, null, 1);
+        }
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        push(expr.expression, false);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        if(expr.value == null)
+            emit(OpCode.NIL, null, 1);
+        else if(expr.value instanceof Boolean)
+            emit((boolean)expr.value ? OpCode.TRUE : OpCode.FALSE, null, 1);
+        else
+            emitConstant(OpCode.CONSTANT, OpCode.CONSTANT_LONG, null, 1, expr.value);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        push(expr, true);
+        push(expr.right, false);
+        return null;
+    }
+
+    private void emitUnary(Expr.Unary expr) {
+        switch(expr.operator.type) {
+            case MINUS:
+                emit(OpCode.NEGATE, expr.operator, 0);
+                break;
+            case BANG:
+                emit(OpCode.NOT, expr.operator, 0);
+                break;
+            default:
+                emit(OpCode.POP, null, -1);
+                emit(OpCode.NIL, null, 1);
+        }
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        if(expr.depth >= 0) {
+            emit(OpCode.GET_LOCAL, null, 1);
+            chunk.writeShort(localSlot(expr.depth, expr.slot));
+            return null;
+        }
+        emitConstant(OpCode.GET_GLOBAL, OpCode.GET_GLOBAL_LONG, expr.name, 1, expr.name.lexeme);
+        return null;
+    }
+
+    private int localSlot(int depth, int slot) {
+        int index = blockBases[blocks - 1 - depth] + slot - 1;
+        if(index > 0xffff)
+            throw new IllegalStateException("Too many locals in one chunk.");
+        return index;
+    }
+
+    private void compile(Expr expr) {
+        int base = count;
+        push(expr, false);
+        while(count > base) {
+            Expr next = pending[--count];
+            pending[count] = null;
+            if(!emitting[count])
+                next.accept(this);
+            else if(next instanceof Expr.Binary)
+                emitBinary((Expr.Binary)next);
+            else if(next instanceof Expr.Unary)
+                emitUnary((Expr.Unary)next);
+            else
+                emitAssign((Expr.Assign)next);
+        }
+    }
+
+    private void push(Expr expr, boolean operator) {
+        if(count == pending.length) {
+            pending = Arrays.copyOf(pending, count * 2);
+            emitting = Arrays.copyOf(emitting, count * 2);
+        }
+        pending[count] = expr;
+        emitting[count++] = operator;
+    }
+
+    // Emits op with the constant's index, or its _LONG variant if the index
+    // does not fit in a u16.
+    private void emitConstant(byte op, byte longOp, Token token, int stackEffect, Object value) {
+        int index = chunk.addConstant(value);
+        if(index <= 0xffff) {
+            emit(op, token, stackEffect);
+            chunk.writeShort(index);
+        } else {
+            emit(longOp, token, stackEffect);
+            chunk.writeMedium(index);
+        }
+    }
+
+    private void emit(byte op, Token token, int stackEffect) {
+        chunk.write(op, token);
+        stackDepth += stackEffect;
+        if(stackDepth > chunk.maxStack)
+            chunk.maxStack = stackDepth;
+    }
+}
@@ -0,0 +1,165 @@
+package com.jlox;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+
+// --check: scans, parses and resolves scripts without running them, and
+// reports the syntax errors of every file as one JSON document. Each file is
+// a task on the common ForkJoinPool with its own collecting ErrorHandler, so
+// files are checked on all cores and one failure does not stop the others.
+class Checker {
+
+    static final class Result {
+        final Path path;
+        final List<ErrorHandler.Diagnostic> diagnostics;
+
+        Result(Path path, List<ErrorHandler.Diagnostic> diagnostics) {
+            this.path = path;
+            this.diagnostics = diagnostics;
+        }
+    }
+
+    // The .lox files under each directory, in path order, and every other
+    // path as given. Paths that do not exist are kept, and so is a directory
+    // that cannot be listed, so the report names them with the reason.
+    static List<Path> files(List<Path> paths) throws IOException {
+        List<Path> files = new ArrayList<>();
+        for (Path path : paths) {
+            if(!Files.isDirectory(path)) {
+                files.add(path);
+                continue;
+            }
+            List<Path> found = new ArrayList<>();
+            Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                    if(attributes.isRegularFile() && file.getFileName().toString().endsWith(".lox"))
+                        found.add(file);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    found.add(file);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path directory, IOException e) {
+                    if(e != null)
+                        found.add(directory);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            Collections.sort(found);
+            files.addAll(found);
+        }
+        return files;
+    }
+
+    // Results in the order of files.
+    static List<Result> check(List<Path> files) {
+        Result[] results = new Result[files.size()];
+        List<ForkJoinTask<?>> tasks = new ArrayList<>(files.size());
+        for (int i = 0; i < results.length; i++) {
+            final int file = i;
+            tasks.add(ForkJoinTask.adapt(() -> results[file] = check(files.get(file))));
+        }
+        ForkJoinTask.invokeAll(tasks);
+        return Arrays.asList(results);
+    }
+
+    static Result check(Path file) {
+        ErrorHandler errors = ErrorHandler.collecting();
+        try {
+            String source = new String(Files.readAllBytes(file), Charset.defaultCharset());
+            List<Stmt> statements = ParallelParser.parse(source, errors);
+            if(!errors.hadError)
+                new Resolver(errors).resolve(statements);
+        } catch (IOException e) {
+            errors.error(0, 0, "Cannot read " + (Files.isDirectory(file) ? "directory" : "file") + " (" + e + ").");
+        }
+        return new Result(file, errors.diagnostics());
+    }
+
+    static boolean failed(List<Result> results) {
+        for (Result result : results) {
+            if(!result.diagnostics.isEmpty())
+                return true;
+        }
+        return false;
+    }
+
+    // {"files": n, "failed": n, "errors": n, "results": [{"path": ..., "errors": [...]}, ...]}
+    // with one entry per file, clean ones included.
+    static void report(List<Result> results, OutputSink out) {
+        int failed = 0, errors = 0;
+        for (Result result : results) {
+            if(!result.diagnostics.isEmpty())
+                failed++;
+            errors += result.diagnostics.size();
+        }
+
+        StringBuilder json = new StringBuilder();
+        json.append("{\n  \"files\": ").append(results.size())
+                .append(",\n  \"failed\": ").append(failed)
+                .append(",\n  \"errors\": ").append(errors)
+                .append(",\n  \"results\": [");
+        for (int i = 0; i < results.size(); i++) {
+            Result result = results.get(i);
+            json.append(i == 0 ? "\n    " : ",\n    ").append("{\"path\": ");
+            string(json, result.path.toString());
+            json.append(", \"errors\": [");
+            for (int j = 0; j < result.diagnostics.size(); j++) {
+                ErrorHandler.Diagnostic diagnostic = result.diagnostics.get(j);
+                json.append(j == 0 ? "\n      " : ",\n      ")
+                        .append("{\"line\": ").append(diagnostic.line)
+                        .append(", \"column\": ").append(diagnostic.column)
+                        .append(", \"where\": ");
+                string(json, diagnostic.where);
+                json.append(", \"message\": ");
+                string(json, diagnostic.message);
+                json.append('}');
+            }
+            json.append(result.diagnostics.isEmpty() ? "]}" : "\n    ]}");
+
+            // keep the buffer small on large repositories
+            if(json.length() > OutputSink.BUFFER) {
+                out.print(json.toString());
+                json.setLength(0);
+            }
+        }
+        json.append(results.isEmpty() ? "]\n}" : "\n  ]\n}");
+        out.println(json.toString());
+    }
+
+    private static void string(StringBuilder json, String text) {
+        json.append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch(c) {
+                case '"': json.append("\\\""); break;
+                case '\\': json.append("\\\\"); break;
+                case '\n': json.append("\\n"); break;
+                case '\r': json.append("\\r"); break;
+                case '\t': json.append("\\t"); break;
+                default:
+                    if(c < 0x20)
+                        json.append(String.format("\\u%04x", (int)c));
+                    else
+                        json.append(c);
+            }
+        }
+        json.append('"');
+    }
+}
@@ -0,0 +1,67 @@
+package com.jlox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// A compiled unit of bytecode: the instruction stream, its constant pool and,
+// for every instruction that can fail, the token used to report the error.
+class Chunk {
+    byte[] code = new byte[64];
+    Token[] tokens = new Token[64];
+    int count = 0;
+    int maxStack = 0;
+
+    private final List<Object> constants = new ArrayList<>();
+    private final Map<Object, Integer> constantIndex = new HashMap<>();
+    private Object[] constantArray;
+
+    void write(byte op, Token token) {
+        ensureCapacity(1);
+        tokens[count] = token;
+        code[count++] = op;
+    }
+
+    void writeShort(int value) {
+        ensureCapacity(2);
+        code[count++] = (byte)((value >> 8) & 0xff);
+        code[count++] = (byte)(value & 0xff);
+    }
+
+    void writeMedium(int value) {
+        ensureCapacity(3);
+        code[count++] = (byte)((value >> 16) & 0xff);
+        code[count++] = (byte)((value >> 8) & 0xff);
+        code[count++] = (byte)(value & 0xff);
+    }
+
+    int addConstant(Object value) {
+        Integer index = constantIndex.get(value);
+        if(index != null)
+            return index;
+
+        if(constants.size() > 0xffffff)
+            throw new IllegalStateException("Too many constants in one chunk.");
+
+        constants.add(value);
+        constantIndex.put(value, constants.size()-1);
+        constantArray = null;
+        return constants.size()-1;
+    }
+
+    Object[] constants() {
+        if(constantArray == null)
+            constantArray = constants.toArray();
+        return constantArray;
+    }
+
+    private void ensureCapacity(int extra) {
+        if(count + extra <= code.length)
+            return;
+        int capacity = Math.max(code.length * 2, count + extra);
+        code = Arrays.copyOf(code, capacity);
+        tokens = Arrays.copyOf(tokens, capacity);
+    }
+}
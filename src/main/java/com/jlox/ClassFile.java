@@ -0,0 +1,335 @@
+package com.jlox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Just enough of the class file format for Jit: one class, no fields, no
+// attributes besides Code. The class is written as version 49, which
+// predates StackMapTable, so branches and handlers need no frames; the
+// verifier infers the types at each target itself.
+final class ClassFile {
+
+    static final int ACONST_NULL = 1, ICONST_0 = 3, BIPUSH = 16, SIPUSH = 17,
+            LDC = 18, LDC_W = 19, LDC2_W = 20, DLOAD = 24, ALOAD = 25, AALOAD = 50,
+            DSTORE = 57, ASTORE = 58, AASTORE = 83, POP = 87, DUP = 89,
+            DADD = 99, DSUB = 103, DMUL = 107, DDIV = 111, DNEG = 119,
+            DCMPL = 151, DCMPG = 152, IFLT = 155, IFGE = 156, IFGT = 157,
+            IFLE = 158, GOTO = 167, RETURN = 177, GETSTATIC = 178,
+            GETFIELD = 180, INVOKEVIRTUAL = 182, INVOKESPECIAL = 183,
+            INVOKESTATIC = 184, CHECKCAST = 192, WIDE = 196;
+
+    private static final int VERSION = 49;
+    private static final int ACC_FINAL_SUPER = 0x0030;
+
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private final Map<String, Integer> entries = new HashMap<>();
+    private int poolSize = 1;
+    private final List<byte[]> methods = new ArrayList<>();
+    private final int thisClass, superClass, codeName;
+
+    ClassFile(String name, String superName) {
+        thisClass = classRef(name);
+        superClass = classRef(superName);
+        codeName = utf8("Code");
+    }
+
+    byte[] toBytes() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(VERSION);
+            out.writeShort(poolSize);
+            poolBytes.writeTo(out);
+            out.writeShort(ACC_FINAL_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0); // interfaces
+            out.writeShort(0); // fields
+            out.writeShort(methods.size());
+            for (byte[] method : methods)
+                out.write(method);
+            out.writeShort(0); // attributes
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    Method method(int access, String name, String descriptor) {
+        return new Method(access, utf8(name), utf8(descriptor));
+    }
+
+    int utf8(String value) {
+        Integer index = entries.get("U" + value);
+        if(index != null)
+            return index;
+        try {
+            pool.writeByte(1);
+            pool.writeUTF(value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return add("U" + value, 1);
+    }
+
+    int classRef(String name) {
+        return entry("C" + name, 7, utf8(name), -1);
+    }
+
+    int integer(int value) {
+        Integer index = entries.get("I" + value);
+        if(index != null)
+            return index;
+        try {
+            pool.writeByte(3);
+            pool.writeInt(value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return add("I" + value, 1);
+    }
+
+    int doubleValue(double value) {
+        long bits = Double.doubleToRawLongBits(value);
+        Integer index = entries.get("D" + bits);
+        if(index != null)
+            return index;
+        try {
+            pool.writeByte(6);
+            pool.writeLong(bits);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        // a double takes two entries
+        return add("D" + bits, 2);
+    }
+
+    int fieldRef(String owner, String name, String descriptor) {
+        return member(9, owner, name, descriptor);
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+        return member(10, owner, name, descriptor);
+    }
+
+    private int member(int tag, String owner, String name, String descriptor) {
+        int nameAndType = entry("N" + name + ":" + descriptor, 12, utf8(name), utf8(descriptor));
+        return entry(tag + owner + "." + name + ":" + descriptor, tag, classRef(owner), nameAndType);
+    }
+
+    // An entry made of one or two u2 references to other entries.
+    private int entry(String key, int tag, int first, int second) {
+        Integer index = entries.get(key);
+        if(index != null)
+            return index;
+        try {
+            pool.writeByte(tag);
+            pool.writeShort(first);
+            if(second >= 0)
+                pool.writeShort(second);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return add(key, 1);
+    }
+
+    private int add(String key, int slots) {
+        int index = poolSize;
+        poolSize += slots;
+        if(poolSize > 0xffff)
+            throw new IllegalStateException("Constant pool overflow.");
+        entries.put(key, index);
+        return index;
+    }
+
+    static final class Label {
+        private int position = -1;
+        private final List<Integer> jumps = new ArrayList<>();
+    }
+
+    private static final class Handler {
+        final Label start, end, handler;
+        final int type;
+
+        Handler(Label start, Label end, Label handler, int type) {
+            this.start = start;
+            this.end = end;
+            this.handler = handler;
+            this.type = type;
+        }
+    }
+
+    // The code of one method. Every instruction is emitted with its effect on
+    // the operand stack so max_stack comes out of the same bookkeeping as
+    // BytecodeCompiler's; after an unconditional jump the caller sets the
+    // depth the next label is reached with.
+    final class Method {
+        private final int access, name, descriptor;
+        private byte[] code = new byte[256];
+        private int length = 0;
+        private final List<Label> labels = new ArrayList<>();
+        // innermost first, the order the JVM searches them in
+        private final List<Handler> handlers = new ArrayList<>();
+        int stack = 0;
+        private int maxStack = 0;
+        private int maxLocals;
+
+        private Method(int access, int name, int descriptor) {
+            this.access = access;
+            this.name = name;
+            this.descriptor = descriptor;
+        }
+
+        int length() {
+            return length;
+        }
+
+        void locals(int count) {
+            maxLocals = Math.max(maxLocals, count);
+        }
+
+        void op(int opcode, int stackEffect) {
+            write(opcode);
+            adjust(stackEffect);
+        }
+
+        void op1(int opcode, int operand, int stackEffect) {
+            write(opcode);
+            write(operand);
+            adjust(stackEffect);
+        }
+
+        void op2(int opcode, int operand, int stackEffect) {
+            write(opcode);
+            write(operand >> 8);
+            write(operand);
+            adjust(stackEffect);
+        }
+
+        void load(int local) {
+            variable(ALOAD, local, 1, 1);
+        }
+
+        void store(int local) {
+            variable(ASTORE, local, 1, -1);
+        }
+
+        void loadDouble(int local) {
+            variable(DLOAD, local, 2, 2);
+        }
+
+        void storeDouble(int local) {
+            variable(DSTORE, local, 2, -2);
+        }
+
+        private void variable(int opcode, int local, int size, int stackEffect) {
+            locals(local + size);
+            if(local > 0xff) {
+                write(WIDE);
+                op2(opcode, local, stackEffect);
+            } else {
+                op1(opcode, local, stackEffect);
+            }
+        }
+
+        void pushInt(int value) {
+            if(value >= -1 && value <= 5)
+                op(ICONST_0 + value, 1);
+            else if(value == (byte)value)
+                op1(BIPUSH, value, 1);
+            else if(value == (short)value)
+                op2(SIPUSH, value, 1);
+            else
+                constant(integer(value));
+        }
+
+        void pushDouble(double value) {
+            op2(LDC2_W, doubleValue(value), 2);
+        }
+
+        private void constant(int index) {
+            if(index <= 0xff)
+                op1(LDC, index, 1);
+            else
+                op2(LDC_W, index, 1);
+        }
+
+        void jump(int opcode, Label target, int stackEffect) {
+            target.jumps.add(length);
+            op2(opcode, 0, stackEffect);
+        }
+
+        void place(Label label) {
+            label.position = length;
+            labels.add(label);
+        }
+
+        // Code in [start, end) throwing type continues at handler, with just
+        // the exception on the stack.
+        void handler(Label start, Label end, Label handler, String type) {
+            handlers.add(new Handler(start, end, handler, classRef(type)));
+        }
+
+        void finish() {
+            for (Label label : labels) {
+                for (int jump : label.jumps) {
+                    int offset = label.position - jump;
+                    if(offset != (short)offset)
+                        throw new IllegalStateException("Branch offset out of range.");
+                    code[jump+1] = (byte)(offset >> 8);
+                    code[jump+2] = (byte)offset;
+                }
+            }
+            if(length > 0xffff)
+                throw new IllegalStateException("Method too large.");
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(length + 32);
+            DataOutputStream out = new DataOutputStream(bytes);
+            try {
+                out.writeShort(access);
+                out.writeShort(name);
+                out.writeShort(descriptor);
+                out.writeShort(1);
+                out.writeShort(codeName);
+                out.writeInt(12 + length + 8 * handlers.size());
+                out.writeShort(maxStack);
+                out.writeShort(maxLocals);
+                out.writeInt(length);
+                out.write(code, 0, length);
+                out.writeShort(handlers.size());
+                for (Handler handler : handlers) {
+                    out.writeShort(handler.start.position);
+                    out.writeShort(handler.end.position);
+                    out.writeShort(handler.handler.position);
+                    out.writeShort(handler.type);
+                }
+                out.writeShort(0); // attributes
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            methods.add(bytes.toByteArray());
+        }
+
+        private void adjust(int stackEffect) {
+            stack += stackEffect;
+            if(stack > maxStack)
+                maxStack = stack;
+        }
+
+        private void write(int b) {
+            if(length == code.length)
+                code = Arrays.copyOf(code, length * 2);
+            code[length++] = (byte)b;
+        }
+    }
+}
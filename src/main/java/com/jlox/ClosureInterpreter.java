@@ -0,0 +1,536 @@
+package com.jlox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Execution backend that translates a program into a tree of closures before
+// running it, instead of walking the AST. compile() visits every Expr and Stmt
+// once: the operation a node performs is chosen then, literals become
+// constants, locals fixed (depth, slot) frame accesses and globals a cache of
+// their Environment cell. Running the program is then only calls from closure
+// to closure. The closures keep nothing of the interpreter running them, which
+// is passed along, so a compiled program can be run again by new interpreters
+// the way the tree's specialized sites are; LoxContext parses, and so
+// compiles, every run anew.
+//
+// Values and errors are the tree's: operands are evaluated in the same order,
+// and operators specialize the way the tree's sites do (see Specialization).
+// Arithmetic and comparisons start on an unboxed path like
+// Interpreter.evaluateDouble: every closure that can produce a number,
+// variable reads included, has an evalNumber returning a primitive double.
+// The first time an operand is not a number the operation finishes
+// generically and the closure stays generic, so a '+' of strings goes
+// through one UnexpectedResultException and then never again.
+//
+// Closures for an expression nest as deeply as the expression, and so do the
+// calls running them. A statement Resolver marked deep is compiled to a flat
+// list of steps in postfix order instead, see compileDeep.
+final class ClosureInterpreter {
+
+    // frame: the locals of the innermost block, laid out as in Interpreter
+    interface Exec {
+        void run(ClosureInterpreter interpreter, Object[] frame);
+    }
+
+    interface Eval {
+        Object eval(ClosureInterpreter interpreter, Object[] frame);
+
+        // The value as a double, or UnexpectedResultException holding it
+        // when it is something else.
+        default double evalNumber(ClosureInterpreter interpreter, Object[] frame) {
+            return Interpreter.expectDouble(eval(interpreter, frame));
+        }
+    }
+
+    // One step of a deep expression: takes its operands from the top of the
+    // values below count, leaves its result there and returns the new count.
+    interface Step {
+        int run(ClosureInterpreter interpreter, Object[] frame, Object[] values, int count);
+    }
+
+    private final Environment environment = new Environment();
+    private final OutputSink out;
+    private final ErrorHandler errors;
+
+    // added to LoxMetrics at the end of every run
+    private long executed = 0;
+    private long lookups = 0;
+
+    ClosureInterpreter(OutputSink out, ErrorHandler errors) {
+        this.out = out;
+        this.errors = errors;
+    }
+
+    void interpret(List<Stmt> statements) {
+        run(compile(statements));
+    }
+
+    static Exec[] compile(List<Stmt> statements) {
+        return new Compiler().compile(statements);
+    }
+
+    void run(Exec[] program) {
+        try {
+            for (Exec statement : program)
+                statement.run(this, null);
+        } catch (RuntimeError error) {
+            errors.runtimeError(error);
+        } finally {
+            LoxMetrics.statements.add(executed);
+            LoxMetrics.lookups.add(lookups);
+            executed = 0;
+            lookups = 0;
+        }
+    }
+
+    private static final class Compiler implements Expr.Visitor<Eval>, Stmt.Visitor<Exec> {
+        // one per name, so each cell is looked up once per interpreter
+        private final Map<String, Global> globals = new HashMap<>();
+
+        private Exec[] compile(List<Stmt> statements) {
+            Exec[] compiled = new Exec[statements.size()];
+            for (int i = 0; i < compiled.length; i++)
+                compiled[i] = statements.get(i).accept(this);
+            return compiled;
+        }
+
+        private Eval compile(Expr expr) {
+            return expr.accept(this);
+        }
+
+        private Eval compile(Expr expr, boolean deep) {
+            return deep ? compileDeep(expr) : compile(expr);
+        }
+
+        // Walks expr in postfix order with a stack of its own, as
+        // Interpreter.evaluateDeep does, and turns every node into a step: a
+        // variable or literal pushes the value its closure produces, an
+        // operator applies the generic operation of its site, an assignment
+        // stores the top value.
+        private Eval compileDeep(Expr expr) {
+            List<Step> steps = new ArrayList<>();
+            Expr[] work = new Expr[64];
+            boolean[] apply = new boolean[64];
+            int top = 0, depth = 0, maxDepth = 0;
+            work[top++] = expr;
+
+            while(top > 0) {
+                Expr next = work[--top];
+                if(top + 3 > work.length) {
+                    work = Arrays.copyOf(work, work.length * 2);
+                    apply = Arrays.copyOf(apply, apply.length * 2);
+                }
+
+                if(apply[top]) {
+                    apply[top] = false;
+                    if(next instanceof Expr.Binary) {
+                        Token operator = ((Expr.Binary)next).operator;
+                        steps.add((interpreter, frame, values, count) -> {
+                            values[count - 2] = Specialization.generic(operator, values[count - 2], values[count - 1]);
+                            return count - 1;
+                        });
+                        depth--;
+                    } else if(next instanceof Expr.Unary) {
+                        Token operator = ((Expr.Unary)next).operator;
+                        steps.add((interpreter, frame, values, count) -> {
+                            values[count - 1] = Specialization.generic(operator, values[count - 1]);
+                            return count;
+                        });
+                    } else {
+                        steps.add(store((Expr.Assign)next));
+                    }
+                    continue;
+                }
+
+                if(next instanceof Expr.Binary) {
+                    apply[top] = true;
+                    work[top + 1] = ((Expr.Binary)next).right;
+                    work[top + 2] = ((Expr.Binary)next).left;
+                    top += 3;
+                } else if(next instanceof Expr.Unary) {
+                    apply[top] = true;
+                    work[top + 1] = ((Expr.Unary)next).right;
+                    top += 2;
+                } else if(next instanceof Expr.Assign) {
+                    apply[top] = true;
+                    work[top + 1] = ((Expr.Assign)next).value;
+                    top += 2;
+                } else if(next instanceof Expr.Grouping) {
+                    work[top++] = ((Expr.Grouping)next).expression;
+                } else {
+                    Eval leaf = compile(next);
+                    steps.add((interpreter, frame, values, count) -> {
+                        values[count] = leaf.eval(interpreter, frame);
+                        return count + 1;
+                    });
+                    maxDepth = Math.max(maxDepth, ++depth);
+                }
+            }
+
+            Step[] program = steps.toArray(new Step[0]);
+            int size = maxDepth;
+            return (interpreter, frame) -> {
+                Object[] values = new Object[size];
+                int count = 0;
+                for (Step step : program)
+                    count = step.run(interpreter, frame, values, count);
+                return values[0];
+            };
+        }
+
+        private Step store(Expr.Assign expr) {
+            int depth = expr.depth, slot = expr.slot;
+            if(depth < 0) {
+                Global global = global(expr.name);
+                return (interpreter, frame, values, count) -> {
+                    global.cell(interpreter).value = values[count - 1];
+                    return count;
+                };
+            }
+            return (interpreter, frame, values, count) -> {
+                frame(frame, depth)[slot] = values[count - 1];
+                return count;
+            };
+        }
+
+        @Override
+        public Exec visitExpressionStmt(Stmt.Expression stmt) {
+            Eval expression = compile(stmt.expression, stmt.deep);
+            return (interpreter, frame) -> {
+                interpreter.executed++;
+                expression.eval(interpreter, frame);
+            };
+        }
+
+        @Override
+        public Exec visitPrintStmt(Stmt.Print stmt) {
+            Eval expression = compile(stmt.expression, stmt.deep);
+            return (interpreter, frame) -> {
+                interpreter.executed++;
+                interpreter.out.println(Interpreter.stringify(expression.eval(interpreter, frame)));
+            };
+        }
+
+        @Override
+        public Exec visitVarStmt(Stmt.Var stmt) {
+            Eval initializer = stmt.initializer != null
+                    ? compile(stmt.initializer, stmt.deep) : (interpreter, frame) -> null;
+            int slot = stmt.slot;
+            if(slot > 0) {
+                return (interpreter, frame) -> {
+                    interpreter.executed++;
+                    frame[slot] = initializer.eval(interpreter, frame);
+                };
+            }
+            String name = stmt.name.lexeme;
+            return (interpreter, frame) -> {
+                interpreter.executed++;
+                interpreter.environment.define(name, initializer.eval(interpreter, frame));
+            };
+        }
+
+        @Override
+        public Exec visitBlockStmt(Stmt.Block stmt) {
+            Exec[] body = compile(stmt.statements);
+            int size = stmt.slots + 1;
+            return (interpreter, frame) -> {
+                interpreter.executed++;
+                Object[] locals = new Object[size];
+                locals[0] = frame;
+                for (Exec statement : body)
+                    statement.run(interpreter, locals);
+            };
+        }
+
+        @Override
+        public Eval visitAssignExpr(Expr.Assign expr) {
+            Eval value = compile(expr.value);
+            int depth = expr.depth, slot = expr.slot;
+            if(depth < 0) {
+                Global global = global(expr.name);
+                return (interpreter, frame) -> {
+                    Object result = value.eval(interpreter, frame);
+                    global.cell(interpreter).value = result;
+                    return result;
+                };
+            }
+            return (interpreter, frame) -> {
+                Object result = value.eval(interpreter, frame);
+                frame(frame, depth)[slot] = result;
+                return result;
+            };
+        }
+
+        @Override
+        public Eval visitVariableExpr(Expr.Variable expr) {
+            if(expr.depth < 0)
+                return global(expr.name);
+            return new Local(expr.depth, expr.slot);
+        }
+
+        private Global global(Token name) {
+            Global global = globals.get(name.lexeme);
+            if(global == null) {
+                global = new Global(name);
+                globals.put(name.lexeme, global);
+            }
+            return global;
+        }
+
+        @Override
+        public Eval visitBinaryExpr(Expr.Binary expr) {
+            Eval left = compile(expr.left);
+            Eval right = compile(expr.right);
+            switch(expr.operator.type) {
+                case EQUAL_EQUAL:
+                    return (interpreter, frame) -> {
+                        Object value = left.eval(interpreter, frame);
+                        return Interpreter.isEqual(value, right.eval(interpreter, frame));
+                    };
+                case BANG_EQUAL:
+                    return (interpreter, frame) -> {
+                        Object value = left.eval(interpreter, frame);
+                        return !Interpreter.isEqual(value, right.eval(interpreter, frame));
+                    };
+                case PLUS:          return new Arithmetic(expr.operator, Specialization.ADD, left, right);
+                case MINUS:         return new Arithmetic(expr.operator, Specialization.SUBTRACT, left, right);
+                case STAR:          return new Arithmetic(expr.operator, Specialization.MULTIPLY, left, right);
+                case SLASH:         return new Arithmetic(expr.operator, Specialization.DIVIDE, left, right);
+                case LESS:          return new Comparison(expr.operator, Specialization.LESS, left, right);
+                case LESS_EQUAL:    return new Comparison(expr.operator, Specialization.LESS_EQUAL, left, right);
+                case GREATER:       return new Comparison(expr.operator, Specialization.GREATER, left, right);
+                case GREATER_EQUAL: return new Comparison(expr.operator, Specialization.GREATER_EQUAL, left, right);
+                default:
+                    throw new IllegalStateException("Unexpected binary operator " + expr.operator.lexeme + ".");
+            }
+        }
+
+        @Override
+        public Eval visitUnaryExpr(Expr.Unary expr) {
+            Eval right = compile(expr.right);
+            if(expr.operator.type == TokenType.BANG)
+                return (interpreter, frame) -> !Interpreter.isTruthy(right.eval(interpreter, frame));
+
+            return new Negate(expr.operator, right);
+        }
+
+        @Override
+        public Eval visitGroupingExpr(Expr.Grouping expr) {
+            return compile(expr.expression);
+        }
+
+        @Override
+        public Eval visitLiteralExpr(Expr.Literal expr) {
+            Object value = expr.value;
+            if(!(value instanceof Double))
+                return (interpreter, frame) -> value;
+
+            return new NumberLiteral((Double)value);
+        }
+    }
+
+    // The frame depth blocks out from the innermost one.
+    private static Object[] frame(Object[] frame, int depth) {
+        for (int i = 0; i < depth; i++)
+            frame = (Object[])frame[0];
+        return frame;
+    }
+
+    // evalNumber of an operand. The leaves every expression ends in are
+    // tested for first, as Interpreter.evaluateDouble does, and called as
+    // their final class: a call through Eval sees every closure class and is
+    // never inlined.
+    private static double number(Eval operand, ClosureInterpreter interpreter, Object[] frame) {
+        if(operand instanceof NumberLiteral)
+            return ((NumberLiteral)operand).number;
+        if(operand instanceof Global)
+            return ((Global)operand).evalNumber(interpreter, frame);
+        if(operand instanceof Local)
+            return ((Local)operand).evalNumber(interpreter, frame);
+        return operand.evalNumber(interpreter, frame);
+    }
+
+    // The closures below override evalNumber, so an operand that is a number
+    // reaches its operator without a Double being made or the default
+    // method's call to eval, which every closure would share.
+
+    private static final class Local implements Eval {
+        private final int depth, slot;
+
+        Local(int depth, int slot) {
+            this.depth = depth;
+            this.slot = slot;
+        }
+
+        @Override
+        public Object eval(ClosureInterpreter interpreter, Object[] frame) {
+            interpreter.lookups++;
+            return frame(frame, depth)[slot];
+        }
+
+        @Override
+        public double evalNumber(ClosureInterpreter interpreter, Object[] frame) {
+            return Interpreter.expectDouble(eval(interpreter, frame));
+        }
+    }
+
+    // A global variable. Cells are never removed and redefining reuses them,
+    // so the cell found stays right as long as the same interpreter runs.
+    private static final class Global implements Eval {
+        private final Token name;
+        private Environment.Cell cell;
+
+        Global(Token name) {
+            this.name = name;
+        }
+
+        Environment.Cell cell(ClosureInterpreter interpreter) {
+            Environment.Cell cell = this.cell;
+            if(cell == null || cell.owner != interpreter.environment)
+                cell = this.cell = interpreter.environment.cell(name);
+            return cell;
+        }
+
+        @Override
+        public Object eval(ClosureInterpreter interpreter, Object[] frame) {
+            interpreter.lookups++;
+            return cell(interpreter).value;
+        }
+
+        @Override
+        public double evalNumber(ClosureInterpreter interpreter, Object[] frame) {
+            return Interpreter.expectDouble(eval(interpreter, frame));
+        }
+    }
+
+    // Number arithmetic on the unboxed path, as Interpreter.arithmetic. An
+    // operand that is not a number sends the operation to the generic
+    // operator, which adds strings or raises the error, and makes the closure
+    // generic for good, as Specialization.generalize does to a site.
+    private static final class Arithmetic implements Eval {
+        private final Token operator;
+        private final int operation;
+        private final Eval left, right;
+        private boolean generic = false;
+
+        Arithmetic(Token operator, int operation, Eval left, Eval right) {
+            this.operator = operator;
+            this.operation = operation;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        public Object eval(ClosureInterpreter interpreter, Object[] frame) {
+            if(generic)
+                return Specialization.generic(operator, left.eval(interpreter, frame), right.eval(interpreter, frame));
+            try {
+                return evalNumber(interpreter, frame);
+            } catch (UnexpectedResultException e) {
+                return e.value;
+            }
+        }
+
+        @Override
+        public double evalNumber(ClosureInterpreter interpreter, Object[] frame) {
+            if(generic)
+                return Interpreter.expectDouble(eval(interpreter, frame));
+            double a, b;
+            try {
+                a = number(left, interpreter, frame);
+            } catch (UnexpectedResultException e) {
+                generic = true;
+                return Interpreter.expectDouble(Specialization.generic(operator, e.value, right.eval(interpreter, frame)));
+            }
+            try {
+                b = number(right, interpreter, frame);
+            } catch (UnexpectedResultException e) {
+                generic = true;
+                return Interpreter.expectDouble(Specialization.generic(operator, a, e.value));
+            }
+            return Specialization.arithmetic(operation, a, b);
+        }
+    }
+
+    private static final class Comparison implements Eval {
+        private final Token operator;
+        private final int operation;
+        private final Eval left, right;
+        private boolean generic = false;
+
+        Comparison(Token operator, int operation, Eval left, Eval right) {
+            this.operator = operator;
+            this.operation = operation;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        public Object eval(ClosureInterpreter interpreter, Object[] frame) {
+            if(generic)
+                return Specialization.generic(operator, left.eval(interpreter, frame), right.eval(interpreter, frame));
+            double a, b;
+            try {
+                a = number(left, interpreter, frame);
+            } catch (UnexpectedResultException e) {
+                generic = true;
+                return Specialization.generic(operator, e.value, right.eval(interpreter, frame));
+            }
+            try {
+                b = number(right, interpreter, frame);
+            } catch (UnexpectedResultException e) {
+                generic = true;
+                return Specialization.generic(operator, a, e.value);
+            }
+            return Specialization.compare(operation, a, b);
+        }
+    }
+
+    private static final class Negate implements Eval {
+        private final Token operator;
+        private final Eval right;
+
+        Negate(Token operator, Eval right) {
+            this.operator = operator;
+            this.right = right;
+        }
+
+        @Override
+        public Object eval(ClosureInterpreter interpreter, Object[] frame) {
+            return evalNumber(interpreter, frame);
+        }
+
+        // anything but a number is an error
+        @Override
+        public double evalNumber(ClosureInterpreter interpreter, Object[] frame) {
+            try {
+                return -number(right, interpreter, frame);
+            } catch (UnexpectedResultException e) {
+                return Interpreter.expectDouble(Specialization.generic(operator, e.value));
+            }
+        }
+    }
+
+    private static final class NumberLiteral implements Eval {
+        private final Double value;
+        private final double number;
+
+        NumberLiteral(Double value) {
+            this.value = value;
+            this.number = value;
+        }
+
+        @Override
+        public Object eval(ClosureInterpreter interpreter, Object[] frame) {
+            return value;
+        }
+
+        @Override
+        public double evalNumber(ClosureInterpreter interpreter, Object[] frame) {
+            return number;
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package com.jlox;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Long-lived server (jlox --daemon=<socket>) that runs scripts submitted over
+// a Unix domain socket, so they skip JVM startup and run on code the JIT has
+// already compiled. DaemonClient is the matching command line client.
+//
+// Every message is a frame: a type byte, a big-endian int length and that
+// many bytes. A connection carries one request,
+//
+//   'F' path     run the script at path (UTF-8, resolved by the daemon)
+//   'S' source   run source (UTF-8)
+//
+// answered by any number of 'O' (stdout) and 'E' (stderr) frames holding
+// output as it is produced, then one 'X' frame with the int exit status:
+// 0, 65 or 70 as for `jlox script`, 66 when the script cannot be read or 64
+// for a malformed request.
+//
+// Scripts run on a fixed pool of contexts, one per processor; a context is
+// reset after every script, so nothing leaks from one script to the next.
+class Daemon {
+
+    static final byte FILE = 'F';
+    static final byte SOURCE = 'S';
+    static final byte STDOUT = 'O';
+    static final byte STDERR = 'E';
+    static final byte EXIT = 'X';
+
+    static final int BAD_REQUEST = 64;
+    static final int CANNOT_READ = 66;
+
+    private static final int WARM_UP_RUNS = 2000;
+    private static final int MAX_FRAME = 1 << 28;
+
+    private final BlockingQueue<Slot> pool;
+    private final ExecutorService connections = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "lox-daemon-connection");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    Daemon(LoxEngine engine, int contexts) {
+        pool = new ArrayBlockingQueue<>(contexts);
+        for (int i = 0; i < contexts; i++)
+            pool.add(new Slot(engine));
+    }
+
+    static void serve(LoxEngine engine, Path socket) throws IOException {
+        Daemon daemon = new Daemon(engine, Runtime.getRuntime().availableProcessors());
+        daemon.warmUp();
+
+        Files.deleteIfExists(socket);
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(socket));
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    Files.deleteIfExists(socket);
+                } catch (IOException e) {
+                    // nothing left to do on the way out
+                }
+            }));
+
+            while(true) {
+                SocketChannel connection = server.accept();
+                daemon.connections.execute(() -> daemon.handle(connection));
+            }
+        }
+    }
+
+    // Runs a program exercising every kind of statement and operator through
+    // each context until the hot paths are compiled.
+    private void warmUp() {
+        StringBuilder source = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            source.append("var a").append(i).append(" = ").append(i).append(";\n")
+                  .append("var s").append(i).append(" = \"s\" + \"").append(i).append("\";\n")
+                  .append("a").append(i).append(" = (a").append(i).append(" + 1) * 2 - 3 / 4;\n")
+                  .append("print a").append(i).append(" < 10 == !(a").append(i).append(" >= -1);\n")
+                  .append("print s").append(i).append(" + s").append(i).append(";\n");
+        }
+        String program = source.toString();
+
+        for (Slot slot : pool) {
+            slot.output.target = OutputStream.nullOutputStream();
+            slot.errors.target = OutputStream.nullOutputStream();
+            for (int i = 0; i < WARM_UP_RUNS / pool.size() + 1; i++) {
+                slot.context.run(program);
+                slot.context.reset();
+            }
+        }
+    }
+
+    private void handle(SocketChannel connection) {
+        try (connection) {
+            OutputStream client = Channels.newOutputStream(connection);
+            ByteBuffer header = ByteBuffer.allocate(5);
+            byte[] payload = readFrame(connection, header);
+            byte type = header.get(0);
+
+            int status;
+            String request = new String(payload, StandardCharsets.UTF_8);
+            String source = type == FILE ? read(request, client) : request;
+            if(source == null) {
+                status = CANNOT_READ;
+            } else if(type != FILE && type != SOURCE) {
+                writeFrame(client, STDERR, ("Unknown request type '" + (char)type + "'.\n").getBytes());
+                status = BAD_REQUEST;
+            } else {
+                status = run(source, client);
+            }
+
+            writeFrame(client, EXIT, ByteBuffer.allocate(4).putInt(status).array());
+        } catch (IOException | RuntimeException e) {
+            // the client went away; the context was reset already
+        }
+    }
+
+    private int run(String source, OutputStream client) throws IOException {
+        Slot slot;
+        try {
+            slot = pool.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a context.", e);
+        }
+
+        slot.output.target = client;
+        slot.errors.target = client;
+        try {
+            return slot.context.run(source);
+        } finally {
+            slot.err.flush();
+            slot.context.reset();
+            pool.add(slot);
+        }
+    }
+
+    private static String read(String path, OutputStream client) throws IOException {
+        try {
+            return new String(Files.readAllBytes(Paths.get(path)), Charset.defaultCharset());
+        } catch (IOException e) {
+            writeFrame(client, STDERR, ("Could not read " + path + " (" + e.getClass().getSimpleName() + ").\n").getBytes());
+            return null;
+        }
+    }
+
+    static void writeFrame(OutputStream out, byte type, byte[] payload) throws IOException {
+        writeFrame(out, type, payload, 0, payload.length);
+    }
+
+    static void writeFrame(OutputStream out, byte type, byte[] payload, int offset, int length) throws IOException {
+        byte[] header = ByteBuffer.allocate(5).put(type).putInt(length).array();
+        out.write(header);
+        out.write(payload, offset, length);
+        out.flush();
+    }
+
+    // Reads the next frame into header (type and length) and returns its payload.
+    static byte[] readFrame(SocketChannel channel, ByteBuffer header) throws IOException {
+        header.clear();
+        readFully(channel, header);
+        int length = header.getInt(1);
+        if(length < 0 || length > MAX_FRAME)
+            throw new IOException("Bad frame length " + length + ".");
+
+        byte[] payload = new byte[length];
+        readFully(channel, ByteBuffer.wrap(payload));
+        return payload;
+    }
+
+    private static void readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while(buffer.hasRemaining()) {
+            if(channel.read(buffer) < 0)
+                throw new IOException("Connection closed mid-frame.");
+        }
+    }
+
+    // A pooled context whose stdout and stderr are sent as frames to the
+    // client currently using it.
+    private static final class Slot {
+        final FrameStream output = new FrameStream(STDOUT);
+        final FrameStream errors = new FrameStream(STDERR);
+        final PrintStream err = new PrintStream(new BufferedOutputStream(errors), true);
+        final LoxContext context;
+
+        Slot(LoxEngine engine) {
+            context = engine.newContext(OutputSink.of(output, OutputSink.BUFFER), err, false);
+        }
+    }
+
+    private static final class FrameStream extends OutputStream {
+        private final byte type;
+        OutputStream target;
+
+        FrameStream(byte type) {
+            this.type = type;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte)b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            if(length > 0)
+                writeFrame(target, type, bytes, offset, length);
+        }
+    }
+}
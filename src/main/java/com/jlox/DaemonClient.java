@@ -0,0 +1,74 @@
+package com.jlox;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+
+// Thin client for Daemon: submits one script, copies its output to stdout and
+// stderr and exits with its status. It loads nothing of the interpreter.
+//
+//   java -cp <jlox classes> com.jlox.DaemonClient <socket> <script>
+//   java -cp <jlox classes> com.jlox.DaemonClient <socket> -     (source on stdin)
+public class DaemonClient {
+
+    // the daemon is not running or went away mid-script
+    private static final int UNAVAILABLE = 69;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.out.println("Usage: DaemonClient <socket> <script>|-");
+            System.exit(64);
+        }
+
+        byte type;
+        byte[] payload;
+        if (args[1].equals("-")) {
+            type = Daemon.SOURCE;
+            payload = System.in.readAllBytes();
+        } else {
+            // the daemon has its own working directory
+            type = Daemon.FILE;
+            payload = Paths.get(args[1]).toAbsolutePath().toString().getBytes(StandardCharsets.UTF_8);
+        }
+
+        try (SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX)) {
+            channel.connect(UnixDomainSocketAddress.of(args[0]));
+            Daemon.writeFrame(Channels.newOutputStream(channel), type, payload);
+
+            ByteBuffer header = ByteBuffer.allocate(5);
+            while(true) {
+                byte[] frame = Daemon.readFrame(channel, header);
+
+                switch(header.get(0)) {
+                    case Daemon.STDOUT:
+                        write(System.out, frame);
+                        break;
+                    case Daemon.STDERR:
+                        System.out.flush();
+                        write(System.err, frame);
+                        break;
+                    case Daemon.EXIT:
+                        System.out.flush();
+                        System.exit(ByteBuffer.wrap(frame).getInt());
+                        break;
+                    default:
+                }
+            }
+        } catch (IOException e) {
+            System.out.flush();
+            System.err.println("Could not talk to the daemon at " + args[0] + ": " + e.getMessage());
+            System.exit(UNAVAILABLE);
+        }
+    }
+
+    private static void write(OutputStream out, byte[] bytes) throws IOException {
+        out.write(bytes);
+        out.flush();
+    }
+}
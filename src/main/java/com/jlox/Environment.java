@@ -4,25 +4,51 @@ import java.util.Map;
 import java.util.HashMap;
 
 public class Environment {
-    private final Map<String, Object> values = new HashMap<>();
+    // A mutable slot holding one variable's value. Once a variable is defined
+    // its cell never changes, so Expr.Variable / Expr.Assign (and the VM) can
+    // cache it after the first lookup and read the value with a field load.
+    // The owner lets a cache notice when the same tree runs against another
+    // environment.
+    static final class Cell {
+        final Environment owner;
+        Object value;
+
+        Cell(Environment owner, Object value) {
+            this.owner = owner;
+            this.value = value;
+        }
+    }
+
+    private final Map<String, Cell> values = new HashMap<>();
 
     void define(String name, Object value) {
-        values.put(name, value);
-    } 
+        // Redefining a name reuses its cell instead of replacing it, so every
+        // cached reference observes the new value.
+        Cell cell = values.get(name);
+        if(cell != null)
+            cell.value = value;
+        else
+            values.put(name, new Cell(this, value));
+    }
+
+    Cell cell(Token name) {
+        Cell cell = find(name.lexeme);
+        if(cell != null)
+            return cell;
 
-    Object get(Token name) {
-        if(values.containsKey(name.lexeme))
-            return values.get(name.lexeme);
-        
         throw new RuntimeError(name, "Undefined variable '"+name.lexeme+"'.");
     }
 
-    void assign(Token name, Object value) {
-        if(values.containsKey(name.lexeme)) {
-            values.put(name.lexeme, value);
-            return;
-        }
+    // The cell of a defined variable, or null.
+    Cell find(String name) {
+        return values.get(name);
+    }
 
-        throw new RuntimeError(name, "Undefined variable '"+name.lexeme+"'.");
+    Object get(Token name) {
+        return cell(name).value;
+    }
+
+    void assign(Token name, Object value) {
+        cell(name).value = value;
     }
 }
@@ -1,24 +1,107 @@
 package com.jlox;
 
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+// Reports syntax and runtime errors for one LoxContext and remembers whether
+// any occurred. A silent handler (see silent()) only records them; a
+// collecting one (see collecting()) also keeps every syntax error.
 public class ErrorHandler {
-    public static void error(int line, int column, String message) {
+    private final OutputSink out;
+    private final PrintStream err;
+    private final List<Diagnostic> diagnostics;
+
+    // written by the scanner and parser threads of a Pipeline
+    volatile boolean hadError = false;
+    volatile boolean hadRuntimeError = false;
+
+    ErrorHandler(PrintStream err) {
+        this(null, err);
+    }
+
+    // out, if given, is flushed before anything is written to err, so errors
+    // appear after the output of the statements that ran before them.
+    ErrorHandler(OutputSink out, PrintStream err) {
+        this(out, err, null);
+    }
+
+    private ErrorHandler(OutputSink out, PrintStream err, List<Diagnostic> diagnostics) {
+        this.out = out;
+        this.err = err;
+        this.diagnostics = diagnostics;
+    }
+
+    static ErrorHandler silent() {
+        return new ErrorHandler(null, null);
+    }
+
+    static ErrorHandler collecting() {
+        return new ErrorHandler(null, null, new ArrayList<>());
+    }
+
+    // A syntax error as reported: where is "at 'lexeme'", "at end" or empty.
+    static final class Diagnostic {
+        final int line;
+        final int column;
+        final String where;
+        final String message;
+
+        Diagnostic(int line, int column, String where, String message) {
+            this.line = line;
+            this.column = column;
+            this.where = where;
+            this.message = message;
+        }
+    }
+
+    // The syntax errors so far, in the order they were reported; only kept
+    // by a collecting handler.
+    List<Diagnostic> diagnostics() {
+        return diagnostics;
+    }
+
+    void reset() {
+        hadError = false;
+        hadRuntimeError = false;
+    }
+
+    public void error(int line, int column, String message) {
         report(line, column, "", message);
     }
 
-    public static void runtimeError(RuntimeError error) {
-        System.err.println("[line "+error.token.line +", column "+error.token.column+"] Error: "+error.getMessage());
-        Lox.hadRuntimeError = true;
+    public void runtimeError(RuntimeError error) {
+        hadRuntimeError = true;
+        LoxEvents.runtimeError(error);
+        print("[line "+error.token.line +", column "+error.token.column+"] Error: "+error.getMessage());
+    }
+
+    // Reports a diagnostic collected by another handler as if it had been
+    // reported here.
+    void report(Diagnostic diagnostic) {
+        report(diagnostic.line, diagnostic.column, diagnostic.where.isEmpty() ? "" : " " + diagnostic.where,
+                diagnostic.message);
     }
 
-    private static void report(int line, int column, String where, String message) {
-        Lox.hadError = true;
-        System.err.println("[line " + line + ", column "+column+"] Error " + where + ": " + message);
+    private void report(int line, int column, String where, String message) {
+        hadError = true;
+        if(diagnostics != null)
+            diagnostics.add(new Diagnostic(line, column, where.trim(), message));
+        print("[line " + line + ", column "+column+"] Error " + where + ": " + message);
     }
 
-    static void error(Token token, String message) {
-        if(token.type == TokenType.EOF) 
+    void error(Token token, String message) {
+        if(token.type == TokenType.EOF)
             report(token.line, token.column, " at end", message);
         else
             report(token.line, token.column, " at '"+token.lexeme+"'", message);
     }
+
+    private void print(String message) {
+        if(err == null)
+            return;
+        if(out != null)
+            out.flush();
+        err.println(message);
+    }
 }
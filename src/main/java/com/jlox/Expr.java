@@ -26,6 +26,10 @@ abstract class Expr {
     
         final Token name;
         final Expr value;
+        // frames up and slot of a local, set by Resolver; depth -1 for globals
+        int depth = -1, slot;
+        // resolved on first execution, see Environment.Cell
+        Environment.Cell cell;
     }
 
     static class Binary extends Expr {
@@ -43,6 +47,8 @@ abstract class Expr {
         final Expr left;
         final Token operator;
         final Expr right;
+        // rewritten in place as the site specializes, see Specialization
+        int state = Specialization.UNINITIALIZED;
     }
 
     static class Grouping extends Expr {
@@ -84,6 +90,8 @@ abstract class Expr {
 
         final Token operator;
         final Expr right;
+        // rewritten in place as the site specializes, see Specialization
+        int state = Specialization.UNINITIALIZED;
     }
 
     static class Variable extends Expr {
@@ -97,6 +105,10 @@ abstract class Expr {
         }
     
         final Token name;
+        // frames up and slot of a local, set by Resolver; depth -1 for globals
+        int depth = -1, slot;
+        // resolved on first execution, see Environment.Cell
+        Environment.Cell cell;
     }
 
     
@@ -0,0 +1,209 @@
+package com.jlox;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+// A parsed program packed into primitive arrays instead of Expr and Stmt
+// objects, for programs too large to hold as an object graph. Built by
+// FlatParser and run by FlatInterpreter.
+//
+// Node n takes four ints of the arena, nodes[4n] to nodes[4n+3]:
+//
+//   kind | extra << 8, a, b, c
+//
+//   EXPRESSION, PRINT  a: expression, c: next statement
+//   VAR                extra: slot (0 for a global), a: name, b: initializer
+//                      or -1, c: next statement
+//   BLOCK              extra: slots, a: first statement or -1, c: next
+//   BINARY, UNARY      extra: operator TokenType ordinal, a: left or operand,
+//                      b: right, c: position
+//   NUMBER             a, b: high and low half of the double's bits
+//   STRING             a: index into strings
+//   TRUE, FALSE, NIL
+//   VARIABLE, ASSIGN   extra: depth + 1 (0 for a global), a: name of a
+//                      global or slot of a local, b: value (ASSIGN),
+//                      c: position
+//
+// Statements are chained through c, so a block needs no list. Groupings are
+// not kept. A position is the source offset of the token an error would be
+// reported at; the line table maps it back to a line, and the column is the
+// offset plus one, as for every token. Only Resolver's results are stored
+// (slots and depths, and which statements are deep), nothing of the tree's
+// runtime state.
+final class FlatAst {
+
+    static final int EXPRESSION = 0;
+    static final int PRINT = 1;
+    static final int VAR = 2;
+    static final int BLOCK = 3;
+    static final int BINARY = 4;
+    static final int UNARY = 5;
+    static final int NUMBER = 6;
+    static final int STRING = 7;
+    static final int TRUE = 8;
+    static final int FALSE = 9;
+    static final int NIL = 10;
+    static final int VARIABLE = 11;
+    static final int ASSIGN = 12;
+
+    int[] nodes = new int[256];
+    private int size = 0;
+    // first top-level statement, -1 for none
+    int first = -1;
+    int statements = 0;
+    // statements whose expression nests deeper than Interpreter.MAX_DEPTH,
+    // as Stmt.deep
+    final BitSet deep = new BitSet();
+
+    String[] names = new String[16];
+    int nameCount = 0;
+    String[] strings = new String[16];
+    private int stringCount = 0;
+
+    // Offsets of the first position recorded on each line, and the line.
+    // Lines without positions are skipped.
+    private int[] lineOffsets = new int[64];
+    private int[] lineNumbers = new int[64];
+    private int lineCount = 0;
+
+    int add(int kind, int extra, int a, int b, int c) {
+        if(size * 4 == nodes.length)
+            nodes = Arrays.copyOf(nodes, nodes.length * 2);
+        int base = size * 4;
+        nodes[base] = kind | extra << 8;
+        nodes[base + 1] = a;
+        nodes[base + 2] = b;
+        nodes[base + 3] = c;
+        return size++;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int kind(int node) {
+        return nodes[node * 4] & 0xff;
+    }
+
+    int extra(int node) {
+        return nodes[node * 4] >> 8;
+    }
+
+    int a(int node) {
+        return nodes[node * 4 + 1];
+    }
+
+    int b(int node) {
+        return nodes[node * 4 + 2];
+    }
+
+    int c(int node) {
+        return nodes[node * 4 + 3];
+    }
+
+    void set(int node, int kind, int extra) {
+        nodes[node * 4] = kind | extra << 8;
+    }
+
+    void setA(int node, int a) {
+        nodes[node * 4 + 1] = a;
+    }
+
+    void setB(int node, int b) {
+        nodes[node * 4 + 2] = b;
+    }
+
+    void setC(int node, int c) {
+        nodes[node * 4 + 3] = c;
+    }
+
+    int number(double value) {
+        long bits = Double.doubleToRawLongBits(value);
+        return add(NUMBER, 0, (int)(bits >>> 32), (int)bits, 0);
+    }
+
+    double number(int node) {
+        return Double.longBitsToDouble((long)a(node) << 32 | b(node) & 0xffffffffL);
+    }
+
+    int string(String value) {
+        if(stringCount == strings.length)
+            strings = Arrays.copyOf(strings, stringCount * 2);
+        strings[stringCount] = value;
+        return add(STRING, 0, stringCount++, 0, 0);
+    }
+
+    // index of a new name; FlatParser keeps them unique
+    int name(String name) {
+        if(nameCount == names.length)
+            names = Arrays.copyOf(names, nameCount * 2);
+        names[nameCount] = name;
+        return nameCount++;
+    }
+
+    // The position of a token at offset on line. Positions are recorded in
+    // source order.
+    int position(int offset, int line) {
+        if(lineCount == 0 || lineNumbers[lineCount-1] != line) {
+            if(lineCount == lineOffsets.length) {
+                lineOffsets = Arrays.copyOf(lineOffsets, lineCount * 2);
+                lineNumbers = Arrays.copyOf(lineNumbers, lineCount * 2);
+            }
+            lineOffsets[lineCount] = offset;
+            lineNumbers[lineCount] = line;
+            lineCount++;
+        }
+        return offset;
+    }
+
+    int line(int position) {
+        int low = 0, high = lineCount - 1;
+        while(low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if(lineOffsets[middle] <= position)
+                low = middle;
+            else
+                high = middle - 1;
+        }
+        return lineNumbers[low];
+    }
+
+    // The token a runtime error at node is reported at.
+    Token token(int node) {
+        int position = c(node);
+        switch(kind(node)) {
+            case BINARY:
+            case UNARY:
+                TokenType operator = TokenType.values()[extra(node)];
+                return new Token(operator, lexeme(operator), line(position), position + 1, null);
+            default:
+                return new Token(TokenType.IDENTIFIER, names[a(node)], line(position), position + 1, null);
+        }
+    }
+
+    private static String lexeme(TokenType operator) {
+        switch(operator) {
+            case PLUS:          return "+";
+            case MINUS:         return "-";
+            case STAR:          return "*";
+            case SLASH:         return "/";
+            case BANG:          return "!";
+            case LESS:          return "<";
+            case LESS_EQUAL:    return "<=";
+            case GREATER:       return ">";
+            case GREATER_EQUAL: return ">=";
+            case EQUAL_EQUAL:   return "==";
+            case BANG_EQUAL:    return "!=";
+            default:            return operator.name();
+        }
+    }
+
+    // Drops the spare capacity once parsing is done.
+    void trim() {
+        nodes = Arrays.copyOf(nodes, size * 4);
+        names = Arrays.copyOf(names, nameCount);
+        strings = Arrays.copyOf(strings, stringCount);
+        lineOffsets = Arrays.copyOf(lineOffsets, lineCount);
+        lineNumbers = Arrays.copyOf(lineNumbers, lineCount);
+    }
+}
@@ -0,0 +1,350 @@
+package com.jlox;
+
+import java.util.Arrays;
+
+// Runs a FlatAst by walking its arena, with the tree's frames, values and
+// errors. There is nowhere to keep per-node specializations, so arithmetic
+// takes the unboxed path whenever the operator has to produce a number
+// ('-', '*', '/', comparisons and operands of those); '+' and everything else
+// is evaluated boxed and checked like Specialization.generic. Statements
+// FlatParser marked deep are evaluated from a work stack, see evaluateDeep.
+final class FlatInterpreter {
+
+    private static final TokenType[] TYPES = TokenType.values();
+
+    private final Environment environment = new Environment();
+    private final OutputSink out;
+    private final ErrorHandler errors;
+
+    // the program being run
+    private FlatAst ast;
+    private int[] nodes;
+    // global cells by name index, looked up on first use
+    private Environment.Cell[] cells;
+    private Object[] frame = null;
+
+    // added to LoxMetrics at the end of every run
+    private long executed = 0;
+    private long lookups = 0;
+
+    FlatInterpreter(OutputSink out, ErrorHandler errors) {
+        this.out = out;
+        this.errors = errors;
+    }
+
+    void interpret(FlatAst ast) {
+        this.ast = ast;
+        this.nodes = ast.nodes;
+        this.cells = new Environment.Cell[ast.nameCount];
+        try {
+            for (int statement = ast.first; statement >= 0; statement = nodes[statement*4 + 3])
+                execute(statement);
+        } catch (RuntimeError error) {
+            errors.runtimeError(error);
+        } finally {
+            LoxMetrics.statements.add(executed);
+            LoxMetrics.lookups.add(lookups);
+            executed = 0;
+            lookups = 0;
+            frame = null;
+        }
+    }
+
+    private void execute(int node) {
+        executed++;
+        int base = node * 4;
+        int header = nodes[base];
+        switch(header & 0xff) {
+            case FlatAst.EXPRESSION:
+                evaluate(nodes[base + 1], node);
+                break;
+            case FlatAst.PRINT:
+                out.println(Interpreter.stringify(evaluate(nodes[base + 1], node)));
+                break;
+            case FlatAst.VAR: {
+                int initializer = nodes[base + 2];
+                Object value = initializer >= 0 ? evaluate(initializer, node) : null;
+                int slot = header >> 8;
+                if(slot > 0)
+                    frame[slot] = value;
+                else
+                    environment.define(ast.names[nodes[base + 1]], value);
+                break;
+            }
+            case FlatAst.BLOCK: {
+                Object[] enclosing = frame;
+                frame = new Object[(header >> 8) + 1];
+                frame[0] = enclosing;
+                try {
+                    for (int statement = nodes[base + 1]; statement >= 0; statement = nodes[statement*4 + 3])
+                        execute(statement);
+                } finally {
+                    frame = enclosing;
+                }
+                break;
+            }
+            default:
+                throw new IllegalStateException("Unexpected statement kind " + (header & 0xff) + ".");
+        }
+    }
+
+    // The value of the expression of statement.
+    private Object evaluate(int node, int statement) {
+        return ast.deep.get(statement) ? evaluateDeep(node) : evaluate(node);
+    }
+
+    // Evaluates node as Interpreter.evaluateDeep does. An operator is on the
+    // work stack twice, the second time as ~node, to be applied once its
+    // operands are on the value stack. Operators take the generic path, which
+    // gives the same results and errors as the unboxed one.
+    private Object evaluateDeep(int node) {
+        int[] work = new int[64];
+        Object[] values = new Object[64];
+        int top = 0, count = 0;
+        work[top++] = node;
+
+        while(top > 0) {
+            int next = work[--top];
+            if(top + 3 > work.length)
+                work = Arrays.copyOf(work, work.length * 2);
+            if(count + 1 > values.length)
+                values = Arrays.copyOf(values, values.length * 2);
+
+            if(next < 0) {
+                next = ~next;
+                int base = next * 4;
+                int header = nodes[base];
+                switch(header & 0xff) {
+                    case FlatAst.BINARY: {
+                        Object right = values[--count];
+                        values[count - 1] = generic(next, TYPES[header >> 8], values[count - 1], right);
+                        break;
+                    }
+                    case FlatAst.UNARY:
+                        values[count - 1] = unary(next, TYPES[header >> 8], values[count - 1]);
+                        break;
+                    default: {
+                        int depth = (header >> 8) - 1;
+                        if(depth >= 0)
+                            frame(depth)[nodes[base + 1]] = values[count - 1];
+                        else
+                            cell(next).value = values[count - 1];
+                    }
+                }
+                continue;
+            }
+
+            int base = next * 4;
+            switch(nodes[base] & 0xff) {
+                case FlatAst.BINARY:
+                    work[top] = ~next;
+                    work[top + 1] = nodes[base + 2];
+                    work[top + 2] = nodes[base + 1];
+                    top += 3;
+                    break;
+                case FlatAst.UNARY:
+                    work[top] = ~next;
+                    work[top + 1] = nodes[base + 1];
+                    top += 2;
+                    break;
+                case FlatAst.ASSIGN:
+                    work[top] = ~next;
+                    work[top + 1] = nodes[base + 2];
+                    top += 2;
+                    break;
+                default:
+                    values[count++] = evaluate(next);
+            }
+        }
+        return values[0];
+    }
+
+    private Object evaluate(int node) {
+        int base = node * 4;
+        int header = nodes[base];
+        switch(header & 0xff) {
+            case FlatAst.BINARY:
+                return binary(node, TYPES[header >> 8]);
+            case FlatAst.UNARY:
+                return unary(node, TYPES[header >> 8], evaluate(nodes[base + 1]));
+            case FlatAst.NUMBER:
+                return ast.number(node);
+            case FlatAst.STRING:
+                return ast.strings[nodes[base + 1]];
+            case FlatAst.TRUE:
+                return true;
+            case FlatAst.FALSE:
+                return false;
+            case FlatAst.NIL:
+                return null;
+            case FlatAst.VARIABLE: {
+                lookups++;
+                int depth = (header >> 8) - 1;
+                if(depth >= 0)
+                    return frame(depth)[nodes[base + 1]];
+                return cell(node).value;
+            }
+            case FlatAst.ASSIGN: {
+                Object value = evaluate(nodes[base + 2]);
+                int depth = (header >> 8) - 1;
+                if(depth >= 0)
+                    frame(depth)[nodes[base + 1]] = value;
+                else
+                    cell(node).value = value;
+                return value;
+            }
+            default:
+                throw new IllegalStateException("Unexpected expression kind " + (header & 0xff) + ".");
+        }
+    }
+
+    private Object unary(int node, TokenType operator, Object right) {
+        if(operator == TokenType.BANG)
+            return !Interpreter.isTruthy(right);
+        if(right instanceof Double)
+            return -(double)right;
+        throw new RuntimeError(ast.token(node), "Operand must be a number.");
+    }
+
+    private Object binary(int node, TokenType operator) {
+        int base = node * 4;
+        switch(operator) {
+            case MINUS:
+            case STAR:
+            case SLASH:
+                try {
+                    return arithmetic(node, operator);
+                } catch (UnexpectedResultException e) {
+                    return e.value;
+                }
+            case LESS:
+            case LESS_EQUAL:
+            case GREATER:
+            case GREATER_EQUAL:
+                return compare(node, operator);
+            default:
+                Object left = evaluate(nodes[base + 1]);
+                Object right = evaluate(nodes[base + 2]);
+                return generic(node, operator, left, right);
+        }
+    }
+
+    // The value of node as an unboxed double, or UnexpectedResultException
+    // holding it when it is something else; see Interpreter.evaluateDouble.
+    private double evaluateDouble(int node) {
+        int base = node * 4;
+        int header = nodes[base];
+        switch(header & 0xff) {
+            case FlatAst.NUMBER:
+                return ast.number(node);
+            case FlatAst.BINARY: {
+                TokenType operator = TYPES[header >> 8];
+                if(operator == TokenType.MINUS || operator == TokenType.STAR || operator == TokenType.SLASH)
+                    return arithmetic(node, operator);
+                break;
+            }
+            case FlatAst.UNARY:
+                if(TYPES[header >> 8] == TokenType.MINUS) {
+                    try {
+                        return -evaluateDouble(nodes[base + 1]);
+                    } catch (UnexpectedResultException e) {
+                        throw new RuntimeError(ast.token(node), "Operand must be a number.");
+                    }
+                }
+                break;
+            default:
+        }
+        return Interpreter.expectDouble(evaluate(node));
+    }
+
+    private double arithmetic(int node, TokenType operator) {
+        int base = node * 4;
+        double left, right;
+        try {
+            left = evaluateDouble(nodes[base + 1]);
+        } catch (UnexpectedResultException e) {
+            return Interpreter.expectDouble(generic(node, operator, e.value, evaluate(nodes[base + 2])));
+        }
+        try {
+            right = evaluateDouble(nodes[base + 2]);
+        } catch (UnexpectedResultException e) {
+            return Interpreter.expectDouble(generic(node, operator, left, e.value));
+        }
+        switch(operator) {
+            case MINUS: return left - right;
+            case STAR:  return left * right;
+            default:    return left / right;
+        }
+    }
+
+    private Object compare(int node, TokenType operator) {
+        int base = node * 4;
+        double left, right;
+        try {
+            left = evaluateDouble(nodes[base + 1]);
+        } catch (UnexpectedResultException e) {
+            return generic(node, operator, e.value, evaluate(nodes[base + 2]));
+        }
+        try {
+            right = evaluateDouble(nodes[base + 2]);
+        } catch (UnexpectedResultException e) {
+            return generic(node, operator, left, e.value);
+        }
+        switch(operator) {
+            case LESS:       return left < right;
+            case LESS_EQUAL: return left <= right;
+            case GREATER:    return left > right;
+            default:         return left >= right;
+        }
+    }
+
+    // The operator semantics of Specialization.generic, including every runtime
+    // error; the token is only made for the error.
+    private Object generic(int node, TokenType operator, Object left, Object right) {
+        switch(operator) {
+            case EQUAL_EQUAL:
+                return Interpreter.isEqual(left, right);
+            case BANG_EQUAL:
+                return !Interpreter.isEqual(left, right);
+            case PLUS:
+                if(left instanceof Double && right instanceof Double)
+                    return (double)left + (double)right;
+                if(left instanceof CharSequence && right instanceof CharSequence)
+                    return Rope.concat((CharSequence)left, (CharSequence)right);
+                throw new RuntimeError(ast.token(node), "Operand must be two numbers or two strings.");
+            default:
+        }
+        if(!(left instanceof Double && right instanceof Double))
+            throw new RuntimeError(ast.token(node), "Operand must be a number.");
+        double a = (double)left, b = (double)right;
+        switch(operator) {
+            case LESS:          return a < b;
+            case LESS_EQUAL:    return a <= b;
+            case GREATER:       return a > b;
+            case GREATER_EQUAL: return a >= b;
+            case MINUS:         return a - b;
+            case STAR:          return a * b;
+            default:            return a / b;
+        }
+    }
+
+    private Environment.Cell cell(int node) {
+        int name = nodes[node*4 + 1];
+        Environment.Cell cell = cells[name];
+        if(cell == null) {
+            cell = environment.find(ast.names[name]);
+            if(cell == null)
+                cell = environment.cell(ast.token(node));
+            cells[name] = cell;
+        }
+        return cell;
+    }
+
+    // The frame depth blocks out from the innermost one.
+    private Object[] frame(int depth) {
+        Object[] frame = this.frame;
+        for (int i = 0; i < depth; i++)
+            frame = (Object[])frame[0];
+        return frame;
+    }
+}
@@ -0,0 +1,431 @@
+package com.jlox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Parser producing a FlatAst. The grammar, the syntax errors and the recovery
+// are Parser's. Resolver's work is done on the way, since every node is
+// final once parsed: blocks get their slot counts and variables their
+// (depth, slot). Resolver's errors are reported after parsing, and only if
+// there was no syntax error, as LoxContext does with Resolver.
+class FlatParser {
+
+    @SuppressWarnings("serial")
+    private static class ParseError extends RuntimeException {}
+
+    private static final class Scope {
+        final Map<String, Integer> slots = new HashMap<>();
+        // the variable whose initializer is being parsed
+        String declaring;
+    }
+
+    private static final class ResolveError {
+        final int node;
+        final Token token;
+        final String message;
+
+        ResolveError(int node, Token token, String message) {
+            this.node = node;
+            this.token = token;
+            this.message = message;
+        }
+    }
+
+    private final TokenBuffer tokens;
+    private int current = 0;
+    private final ErrorHandler errors;
+    private final FlatAst ast = new FlatAst();
+    private final Map<String, Integer> names = new HashMap<>();
+    // innermost last; empty at the top level
+    private final List<Scope> scopes = new ArrayList<>();
+    private final List<ResolveError> resolveErrors = new ArrayList<>();
+    // the last expression written in parentheses, which is no assignment
+    // target even if it is a variable
+    private int grouped = -1;
+
+    FlatParser(TokenBuffer tokens, ErrorHandler errors) {
+        this.tokens = tokens;
+        this.errors = errors;
+    }
+
+    static FlatAst parse(String source, ErrorHandler errors) {
+        return new FlatParser(new Scanner(source, errors).scanTokens(), errors).parse();
+    }
+
+    FlatAst parse() {
+        LoxEvents.Parse event = LoxEvents.parse();
+        int last = -1;
+        while(!isAtEnd()) {
+            int statement = declaration();
+            ast.statements++;
+            if(statement < 0)
+                continue;
+            if(last < 0)
+                ast.first = statement;
+            else
+                ast.setC(last, statement);
+            last = statement;
+        }
+
+        if(!errors.hadError) {
+            for (ResolveError error : resolveErrors)
+                errors.error(error.token, error.message);
+        }
+        ast.trim();
+        if(event != null)
+            event.end(current + 1, ast.statements);
+        return ast;
+    }
+
+    private boolean match(TokenType... types) {
+        for(TokenType type : types) {
+            if(check(type)) {
+                advance();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean check(TokenType type) {
+        if(isAtEnd())
+            return false;
+        return tokens.type(current) == type;
+    }
+
+    private void advance() {
+        if(!isAtEnd())
+            current++;
+    }
+
+    private boolean isAtEnd() {
+        return tokens.type(current) == TokenType.EOF;
+    }
+
+    private TokenType previousType() {
+        return tokens.type(current-1);
+    }
+
+    // Positions have to be taken in source order, see FlatAst.position.
+    private int position(int token) {
+        return ast.position(tokens.column(token) - 1, tokens.line(token));
+    }
+
+    private void consume(TokenType type, String message) {
+        if (check(type)) {
+            advance();
+            return;
+        }
+        throw error(tokens.token(current), message);
+    }
+
+    private ParseError error(Token token, String message) {
+        errors.error(token, message);
+        return new ParseError();
+    }
+
+    private void synchronize() {
+        advance();
+
+        while(!isAtEnd()) {
+            if(previousType() == TokenType.SEMICOLON) return;
+
+            switch(tokens.type(current)) {
+                case CLASS:
+                case FUN:
+                case VAR:
+                case FOR:
+                case IF:
+                case WHILE:
+                case PRINT:
+                case RETURN:
+                    return;
+                default:
+            }
+            advance();
+        }
+    }
+
+    private int name(String name) {
+        Integer index = names.get(name);
+        if(index == null) {
+            index = ast.name(name);
+            names.put(name, index);
+        }
+        return index;
+    }
+
+    // Statements return their node, or -1 after a syntax error.
+
+    private int declaration() {
+        // a block left by an error must not stay in scope
+        int depth = scopes.size();
+        try {
+            if(match(TokenType.VAR))
+                return varDeclaration();
+            return statement();
+
+        } catch(ParseError error) {
+            while(scopes.size() > depth)
+                scopes.remove(scopes.size()-1);
+            synchronize();
+            return -1;
+        }
+    }
+
+    private int varDeclaration() {
+        consume(TokenType.IDENTIFIER, "Expect variable name.");
+        int name = current-1;
+        String lexeme = tokens.lexeme(name);
+
+        int slot = 0;
+        Scope scope = null;
+        if(!scopes.isEmpty()) {
+            scope = scopes.get(scopes.size()-1);
+            Integer declared = scope.slots.get(lexeme);
+            if(declared != null) {
+                resolveErrors.add(new ResolveError(-1, tokens.token(name),
+                        "Already a variable with this name in this scope."));
+                slot = declared;
+            } else {
+                slot = scope.slots.size() + 1;
+                scope.slots.put(lexeme, slot);
+            }
+        }
+
+        int initializer = -1;
+        if(match(TokenType.EQUAL)) {
+            if(scope != null)
+                scope.declaring = lexeme;
+            try {
+                initializer = expression();
+            } finally {
+                if(scope != null)
+                    scope.declaring = null;
+            }
+        }
+
+        boolean deep = initializer >= 0 && nesting > Interpreter.MAX_DEPTH;
+        consume(TokenType.SEMICOLON, "Expect ';' after variable declaration.");
+        return mark(ast.add(FlatAst.VAR, slot, slot > 0 ? 0 : name(lexeme), initializer, -1), deep);
+    }
+
+    private int statement() {
+        if(match(TokenType.PRINT))
+            return printStatement();
+        if(match(TokenType.LEFT_BRACE))
+            return block();
+        return expressionStatement();
+    }
+
+    // block → "{" declaration* "}" ;
+
+    private int block() {
+        Scope scope = new Scope();
+        scopes.add(scope);
+        int first = -1, last = -1;
+        while(!check(TokenType.RIGHT_BRACE) && !isAtEnd()) {
+            int statement = declaration();
+            if(statement < 0)
+                continue;
+            if(last < 0)
+                first = statement;
+            else
+                ast.setC(last, statement);
+            last = statement;
+        }
+
+        consume(TokenType.RIGHT_BRACE, "Expect '}' after block.");
+        scopes.remove(scopes.size()-1);
+        return ast.add(FlatAst.BLOCK, scope.slots.size(), first, 0, -1);
+    }
+
+    private int printStatement() {
+        int value = expression();
+        boolean deep = nesting > Interpreter.MAX_DEPTH;
+        consume(TokenType.SEMICOLON, "Expect ';' after value.");
+        return mark(ast.add(FlatAst.PRINT, 0, value, 0, -1), deep);
+    }
+
+    private int expressionStatement() {
+        int expr = expression();
+        boolean deep = nesting > Interpreter.MAX_DEPTH;
+        consume(TokenType.SEMICOLON, "Expect ';' after value.");
+        return mark(ast.add(FlatAst.EXPRESSION, 0, expr, 0, -1), deep);
+    }
+
+    private int mark(int statement, boolean deep) {
+        if(deep)
+            ast.deep.set(statement);
+        return statement;
+    }
+
+    // Parsed without recursion, as Parser.expression() does and with the
+    // same precedence table; the pending frames hold node and token indexes.
+    // Nodes are added in the order the recursive rules would add them, and
+    // positions taken in source order. Each node's nesting is tracked on the
+    // way, so statements too deep for FlatInterpreter to evaluate
+    // recursively can be marked as Resolver marks them.
+
+    // pending frames
+    private static final int UNARY = 0;    // operator, position
+    private static final int BINARY = 1;   // left operand, operator, position, precedence
+    private static final int ASSIGN = 2;   // target, '=', whether the target is valid
+    private static final int GROUP = 3;
+
+    private int[] frameKinds = new int[16];
+    private int[] frameNodes = new int[16];
+    private int[] frameTokens = new int[16];
+    private int[] framePositions = new int[16];
+    private int[] framePrecedences = new int[16];
+    // how deeply the left operand or the target nests
+    private int[] frameDepths = new int[16];
+    private int frames = 0;
+    // how deeply the last expression parsed nests; parentheses are no node
+    private int nesting;
+
+    private int expression() {
+        // frames left by an expression that ended in a syntax error
+        frames = 0;
+
+        while(true) {
+            // the operand: prefix operators and parentheses up to a primary
+            TokenType type = tokens.type(current);
+            if(type == TokenType.BANG || type == TokenType.MINUS) {
+                advance();
+                push(UNARY, 0, current-1, position(current-1), 0, 0);
+                continue;
+            }
+            if(type == TokenType.LEFT_PAREN) {
+                advance();
+                push(GROUP, 0, 0, 0, 0, 0);
+                continue;
+            }
+            int expr = primary();
+            int depth = 1;
+
+            while(true) {
+                int top = frames - 1;
+                int kind = top >= 0 ? frameKinds[top] : -1;
+                if(kind == UNARY) {
+                    expr = ast.add(FlatAst.UNARY, tokens.type(frameTokens[top]).ordinal(), expr, 0, framePositions[top]);
+                    depth++;
+                    frames--;
+                    continue;
+                }
+
+                int precedence = kind == BINARY ? framePrecedences[top] + 1 : Parser.EQUALITY;
+                int operatorPrecedence = Parser.PRECEDENCE[tokens.type(current).ordinal()];
+                if(operatorPrecedence >= precedence) {
+                    advance();
+                    push(BINARY, expr, current-1, position(current-1), operatorPrecedence, depth);
+                    break;
+                }
+                if(kind == BINARY) {
+                    expr = ast.add(FlatAst.BINARY, tokens.type(frameTokens[top]).ordinal(),
+                            frameNodes[top], expr, framePositions[top]);
+                    depth = Math.max(frameDepths[top], depth) + 1;
+                    frames--;
+                    continue;
+                }
+
+                // expr is a whole equality
+                if(match(TokenType.EQUAL)) {
+                    boolean target = ast.kind(expr) == FlatAst.VARIABLE && expr != grouped;
+                    // an assignment target is not read, so it cannot be read in its
+                    // own initializer; its error was the last one recorded
+                    if(target && !resolveErrors.isEmpty() && resolveErrors.get(resolveErrors.size()-1).node == expr)
+                        resolveErrors.remove(resolveErrors.size()-1);
+                    push(ASSIGN, expr, current-1, target ? 1 : 0, 0, depth);
+                    break;
+                }
+                if(kind == ASSIGN) {
+                    int target = frameNodes[top];
+                    frames--;
+                    if(framePositions[top] != 0) {
+                        ast.set(target, FlatAst.ASSIGN, ast.extra(target));
+                        ast.setB(target, expr);
+                        depth++;
+                    } else {
+                        error(tokens.token(frameTokens[top]), "Invalid assignment target.");
+                        depth = frameDepths[top];
+                    }
+                    expr = target;
+                    continue;
+                }
+                if(kind == GROUP) {
+                    consume(TokenType.RIGHT_PAREN, "Expect ')' after expression.");
+                    frames--;
+                    grouped = expr;
+                    continue;
+                }
+                nesting = depth;
+                return expr;
+            }
+        }
+    }
+
+    private void push(int kind, int node, int token, int position, int precedence, int depth) {
+        if(frames == frameKinds.length) {
+            int capacity = frames * 2;
+            frameKinds = Arrays.copyOf(frameKinds, capacity);
+            frameNodes = Arrays.copyOf(frameNodes, capacity);
+            frameTokens = Arrays.copyOf(frameTokens, capacity);
+            framePositions = Arrays.copyOf(framePositions, capacity);
+            framePrecedences = Arrays.copyOf(framePrecedences, capacity);
+            frameDepths = Arrays.copyOf(frameDepths, capacity);
+        }
+        frameKinds[frames] = kind;
+        frameNodes[frames] = node;
+        frameTokens[frames] = token;
+        framePositions[frames] = position;
+        framePrecedences[frames] = precedence;
+        frameDepths[frames] = depth;
+        frames++;
+    }
+
+    /*
+        primary → NUMBER | STRING | IDENTIFIER | "true" | "false" | "nil"
+                  | "(" expression ")" ;
+
+        Parentheses are handled by expression().
+    */
+
+    private int primary() {
+        if(match(TokenType.NUMBER))
+            return ast.number((double)tokens.literal(current-1));
+        if(match(TokenType.STRING))
+            return ast.string((String)tokens.literal(current-1));
+        if(match(TokenType.IDENTIFIER))
+            return variable(current-1);
+
+        if(match(TokenType.FALSE))
+            return ast.add(FlatAst.FALSE, 0, 0, 0, 0);
+        if(match(TokenType.TRUE))
+            return ast.add(FlatAst.TRUE, 0, 0, 0, 0);
+        if(match(TokenType.NIL))
+            return ast.add(FlatAst.NIL, 0, 0, 0, 0);
+
+        throw error(tokens.token(current), "Expect expression.");
+    }
+
+    private int variable(int token) {
+        String lexeme = tokens.lexeme(token);
+        int position = position(token);
+        for (int i = scopes.size()-1; i >= 0; i--) {
+            Scope scope = scopes.get(i);
+            Integer slot = scope.slots.get(lexeme);
+            if(slot != null) {
+                int node = ast.add(FlatAst.VARIABLE, scopes.size() - i, slot, 0, position);
+                if(lexeme.equals(scope.declaring))
+                    resolveErrors.add(new ResolveError(node, tokens.token(token),
+                            "Can't read local variable in its own initializer."));
+                return node;
+            }
+        }
+        return ast.add(FlatAst.VARIABLE, 0, name(lexeme), 0, position);
+    }
+}
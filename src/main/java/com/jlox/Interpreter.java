@@ -1,10 +1,40 @@
 package com.jlox;
 
+import java.util.Arrays;
 import java.util.List;
 
 public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> { 
 
+    // Expressions nesting deeper than this are evaluated by evaluateDeep,
+    // see Resolver.
+    static final int MAX_DEPTH = 200;
+
     private Environment environment = new Environment();
+    // locals of the innermost block being executed, null outside blocks;
+    // slot 0 holds the enclosing block's frame, see Resolver
+    private Object[] frame;
+    private final OutputSink out;
+    private final ErrorHandler errors;
+    // whether hot blocks are compiled, see Jit
+    private final boolean jit;
+
+    // added to LoxMetrics at the end of every run
+    private long executed = 0;
+    private long lookups = 0;
+
+    public Interpreter() {
+        this(OutputSink.of(System.out, OutputSink.LINE), new ErrorHandler(System.err));
+    }
+
+    Interpreter(OutputSink out, ErrorHandler errors) {
+        this(out, errors, true);
+    }
+
+    Interpreter(OutputSink out, ErrorHandler errors, boolean jit) {
+        this.out = out;
+        this.errors = errors;
+        this.jit = jit;
+    }
 
     void interpret(List<Stmt> statements) {
         try {
@@ -12,31 +42,83 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
                 execute(statement);
             }
         } catch (RuntimeError error) {
-            ErrorHandler.runtimeError(error);
+            errors.runtimeError(error);
+        } finally {
+            LoxMetrics.statements.add(executed);
+            LoxMetrics.lookups.add(lookups);
+            executed = 0;
+            lookups = 0;
         }
     }
 
     @Override
     public Void visitExpressionStmt(Stmt.Expression stmt) {
-        evaluate(stmt.expression);
+        if(stmt.deep)
+            evaluateDeep(stmt.expression);
+        else
+            evaluate(stmt.expression);
         return null;
     }
 
     @Override
     public Void visitPrintStmt(Stmt.Print stmt) {
-        Object value = evaluate(stmt.expression);
-        System.out.println(stringify(value));
+        print(stmt.deep ? evaluateDeep(stmt.expression) : evaluate(stmt.expression));
         return null;
     }
 
+    void print(Object value) {
+        out.println(stringify(value));
+    }
+
     @Override
     public Void visitVarStmt(Stmt.Var stmt) {
         Object value = null;
         if(stmt.initializer != null) {
-            value = evaluate(stmt.initializer);
+            value = stmt.deep ? evaluateDeep(stmt.initializer) : evaluate(stmt.initializer);
         }
 
+        if(stmt.slot > 0)
+            frame[stmt.slot] = value;
+        else
+            define(stmt, value);
+        return null;
+    }
+
+    // The globals, also used by code compiled by Jit.
+
+    void define(Stmt.Var stmt, Object value) {
         environment.define(stmt.name.lexeme, value);
+    }
+
+    Object global(Expr.Variable expr) {
+        Environment.Cell cell = expr.cell;
+        if(cell == null || cell.owner != environment)
+            cell = expr.cell = environment.cell(expr.name);
+        return cell.value;
+    }
+
+    Object assignGlobal(Expr.Assign expr, Object value) {
+        Environment.Cell cell = expr.cell;
+        if(cell == null || cell.owner != environment)
+            cell = expr.cell = environment.cell(expr.name);
+        cell.value = value;
+        return value;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        if(jit && runCompiled(stmt))
+            return null;
+
+        Object[] enclosing = frame;
+        frame = new Object[stmt.slots + 1];
+        frame[0] = enclosing;
+        try {
+            for (Stmt statement : stmt.statements)
+                execute(statement);
+        } finally {
+            frame = enclosing;
+        }
         return null;
     }
 
@@ -44,52 +126,32 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     @Override
     public Object visitAssignExpr(Expr.Assign expr) {
         Object value = evaluate(expr.value);
-        environment.assign(expr.name, value);
-        return value;
+        if(expr.depth >= 0) {
+            frame(expr.depth)[expr.slot] = value;
+            return value;
+        }
+        return assignGlobal(expr, value);
     }
 
     @Override
     public Object visitBinaryExpr(Expr.Binary expr) {
+        int state = expr.state;
 
-        Object left = evaluate(expr.left);
-        Object right = evaluate(expr.right);
-
-        switch(expr.operator.type) {
-            case EQUAL_EQUAL:
-                return isEqual(left, right);
-            case BANG_EQUAL:
-                return !isEqual(left, right);
-            case LESS:
-                return (double)left < (double)right;
-            case LESS_EQUAL:
-                return (double)left <= (double)right;
-            case GREATER:
-                checkNumberOperand(expr.operator, left, right);
-                return (double)left > (double)right;
-            case GREATER_EQUAL:
-                checkNumberOperand(expr.operator, left, right);
-                return (double)left >= (double)right;
-            case PLUS:
-                if (left instanceof Double && right instanceof Double)
-                    return (double)left + (double)right;
-                if (left instanceof String && right instanceof String)
-                    return (String)left + (String)right;
-                throw new RuntimeError(expr.operator, "Operand must be two numbers or two strings.");
-            case MINUS:
-                checkNumberOperand(expr.operator, left, right);
-                return (double)left - (double)right;
-            case STAR:
-                checkNumberOperand(expr.operator, left, right);
-                return (double)left * (double)right;
-            case SLASH:
-                checkNumberOperand(expr.operator, left, right);
-                return (double)left / (double)right;
-            default:
-            
+        // Number-specialized sites evaluate their operands unboxed; only the
+        // final result of an arithmetic subtree is boxed.
+        if(Specialization.isArithmetic(state)) {
+            try {
+                return arithmetic(expr, state);
+            } catch (UnexpectedResultException e) {
+                return e.value;
+            }
         }
+        if(Specialization.isComparison(state))
+            return compare(expr, state);
 
-        // should be unreachable
-        return null;
+        Object left = evaluate(expr.left);
+        Object right = evaluate(expr.right);
+        return Specialization.binary(expr, left, right);
     }
 
     @Override
@@ -105,25 +167,52 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     @Override
     public Object visitUnaryExpr(Expr.Unary expr){
         Object right = evaluate(expr.right);
-
-        switch(expr.operator.type) {
-            case MINUS :
-                checkNumberOperand(expr.operator, right);
-                return -(double)right;
-            case BANG:
-                return !isTruthy(right);
-            default:
-        }
-        // should be unreachable
-        return null;
+        return Specialization.unary(expr, right);
     }
 
     @Override
     public Object visitVariableExpr(Expr.Variable expr) {
-        return environment.get(expr.name);
+        lookups++;
+        if(expr.depth >= 0)
+            return frame(expr.depth)[expr.slot];
+        return global(expr);
+    }
+
+    // The frame depth blocks out from the innermost one.
+    private Object[] frame(int depth) {
+        Object[] frame = this.frame;
+        for (int i = 0; i < depth; i++)
+            frame = (Object[])frame[0];
+        return frame;
+    }
+
+    // Runs the code Jit compiled for the block once it has become hot.
+    // Returns false if the tree has to run it.
+    private boolean runCompiled(Stmt.Block stmt) {
+        Jit.Code code = stmt.compiled;
+        if(code == null) {
+            if(++stmt.executions != Jit.THRESHOLD)
+                return false;
+            code = stmt.compiled = Jit.compile(stmt);
+            if(code == null)
+                return false;
+        }
+        try {
+            code.run(this, frame);
+        } finally {
+            // also when the operation that failed a guard is a runtime error
+            if(code.invalid) {
+                stmt.compiled = null;
+                stmt.executions = 0;
+            }
+        }
+        executed += code.statements;
+        lookups += code.lookups;
+        return true;
     }
 
     private void execute(Stmt stmt) {
+        executed++;
         stmt.accept(this);
     }
 
@@ -131,29 +220,166 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return expr.accept(this);
     }
 
-    private Boolean isTruthy(Object object) {
+    // Evaluates expr with a work stack and a value stack instead of the
+    // thread's stack, so nesting is limited by the heap. Each operator is on
+    // the work stack twice: to push its operands, left on top, and to
+    // apply it once their values are on the value stack. Values are boxed,
+    // but every operator still goes through its site's state, so results,
+    // errors and specializations are those of the visitor.
+    private Object evaluateDeep(Expr expr) {
+        Expr[] work = new Expr[64];
+        boolean[] apply = new boolean[64];
+        Object[] values = new Object[64];
+        int top = 0, count = 0;
+        work[top++] = expr;
+
+        while(top > 0) {
+            top--;
+            Expr next = work[top];
+            if(top + 3 > work.length) {
+                work = Arrays.copyOf(work, work.length * 2);
+                apply = Arrays.copyOf(apply, apply.length * 2);
+            }
+            if(count + 1 > values.length)
+                values = Arrays.copyOf(values, values.length * 2);
+
+            if(apply[top]) {
+                apply[top] = false;
+                if(next instanceof Expr.Binary) {
+                    Expr.Binary binary = (Expr.Binary)next;
+                    Object right = values[--count];
+                    values[count - 1] = Specialization.binary(binary, values[count - 1], right);
+                } else if(next instanceof Expr.Unary) {
+                    Expr.Unary unary = (Expr.Unary)next;
+                    values[count - 1] = Specialization.unary(unary, values[count - 1]);
+                } else {
+                    Expr.Assign assign = (Expr.Assign)next;
+                    if(assign.depth >= 0)
+                        frame(assign.depth)[assign.slot] = values[count - 1];
+                    else
+                        assignGlobal(assign, values[count - 1]);
+                }
+                continue;
+            }
+
+            if(next instanceof Expr.Binary) {
+                Expr.Binary binary = (Expr.Binary)next;
+                apply[top] = true;
+                work[top + 1] = binary.right;
+                work[top + 2] = binary.left;
+                top += 3;
+            } else if(next instanceof Expr.Unary) {
+                apply[top] = true;
+                work[top + 1] = ((Expr.Unary)next).right;
+                top += 2;
+            } else if(next instanceof Expr.Assign) {
+                apply[top] = true;
+                work[top + 1] = ((Expr.Assign)next).value;
+                top += 2;
+            } else if(next instanceof Expr.Grouping) {
+                work[top++] = ((Expr.Grouping)next).expression;
+            } else if(next instanceof Expr.Literal) {
+                values[count++] = ((Expr.Literal)next).value;
+            } else {
+                Expr.Variable variable = (Expr.Variable)next;
+                lookups++;
+                values[count++] = variable.depth >= 0 ? frame(variable.depth)[variable.slot] : global(variable);
+            }
+        }
+        return values[0];
+    }
+
+    // Primitive evaluation path. Returns the value of expr as a double without
+    // boxing, or throws UnexpectedResultException holding the boxed value when
+    // expr turned out not to be a number.
+    private double evaluateDouble(Expr expr) {
+        if(expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary)expr;
+            if(Specialization.isArithmetic(binary.state))
+                return arithmetic(binary, binary.state);
+        } else if(expr instanceof Expr.Literal) {
+            Object value = ((Expr.Literal)expr).value;
+            if(value instanceof Double)
+                return (double)value;
+            throw new UnexpectedResultException(value);
+        } else if(expr instanceof Expr.Grouping) {
+            return evaluateDouble(((Expr.Grouping)expr).expression);
+        } else if(expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary)expr;
+            if(unary.state == Specialization.NEGATE) {
+                try {
+                    return -evaluateDouble(unary.right);
+                } catch (UnexpectedResultException e) {
+                    return expectDouble(Specialization.generalize(unary, e.value));
+                }
+            }
+        }
+
+        return expectDouble(evaluate(expr));
+    }
+
+    private double arithmetic(Expr.Binary expr, int state) {
+        double left, right;
+        try {
+            left = evaluateDouble(expr.left);
+        } catch (UnexpectedResultException e) {
+            return expectDouble(Specialization.generalize(expr, e.value, evaluate(expr.right)));
+        }
+        try {
+            right = evaluateDouble(expr.right);
+        } catch (UnexpectedResultException e) {
+            return expectDouble(Specialization.generalize(expr, left, e.value));
+        }
+        return Specialization.arithmetic(state, left, right);
+    }
+
+    private Object compare(Expr.Binary expr, int state) {
+        double left, right;
+        try {
+            left = evaluateDouble(expr.left);
+        } catch (UnexpectedResultException e) {
+            return Specialization.generalize(expr, e.value, evaluate(expr.right));
+        }
+        try {
+            right = evaluateDouble(expr.right);
+        } catch (UnexpectedResultException e) {
+            return Specialization.generalize(expr, left, e.value);
+        }
+        return Specialization.compare(state, left, right);
+    }
+
+    static double expectDouble(Object value) {
+        if(value instanceof Double)
+            return (double)value;
+        throw new UnexpectedResultException(value);
+    }
+
+    static boolean isTruthy(Object object) {
         if (object == null) return false;
         if (object instanceof Boolean) return (boolean)object;
         return true;
     }
 
-    private boolean isEqual(Object left, Object right) {
+    static boolean isEqual(Object left, Object right) {
         if (left == null && right == null) return true;
         if (left == null) return false;
+        // a string may be a String or a Rope with the same characters
+        if (left instanceof CharSequence && right instanceof CharSequence)
+            return left.toString().equals(right.toString());
         return left.equals(right);
     }
 
-    private void checkNumberOperand(Token operator, Object operand) {
+    static void checkNumberOperand(Token operator, Object operand) {
         if(operand instanceof Double) return;
         throw new RuntimeError(operator, "Operand must be a number.");
     }
 
-    private void checkNumberOperand(Token operator, Object left, Object right) {
+    static void checkNumberOperand(Token operator, Object left, Object right) {
         if(left instanceof Double && right instanceof Double) return;
         throw new RuntimeError(operator, "Operand must be a number.");
     }
     
-    private String stringify(Object object) {
+    static String stringify(Object object) {
         if(object == null) return "nil";
 
         if(object instanceof Double) {
@@ -0,0 +1,544 @@
+package com.jlox;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.List;
+
+// Compilation tier of the tree interpreter. Interpreter counts how often
+// the tree runs each block; once it has done so THRESHOLD times the block is
+// translated to a JVM method, loaded as a hidden class and run in place of
+// the tree from then on, so HotSpot compiles the script itself rather than
+// the interpreter.
+//
+// Only blocks are compiled, because that is where there is something to
+// gain: their locals become JVM locals, which HotSpot keeps in registers,
+// instead of slots of a frame array. A global is read through the same
+// Environment cell either way, so compiling statements that only work on
+// globals would cost HotSpot compile time and win nothing back.
+//
+// The code speculates on the types the tree has seen. Sites the tree has
+// specialized to numbers are compiled the way Interpreter.evaluateDouble
+// runs them: operands stay primitive doubles and only the result of a
+// number subtree is boxed, with exception handlers doing what the catch
+// blocks of arithmetic() and compare() do when an operand is not a number.
+// Those handlers finish the operation the generic way, generalizing the site,
+// and mark the code invalid; Interpreter drops it and goes back to the tree,
+// which may compile the block again later with what it has learned. Other
+// sites call Specialization like the tree does.
+//
+// On unless jlox is run with --no-jit; the threshold is
+// -Djlox.jit.threshold. A block the generator cannot compile stays on the
+// tree, and -Djlox.jit.debug=true reports each one on stderr. A block only
+// becomes hot when the same parsed program runs again and again, as in
+// InterpreterBenchmark: a script runs each block once, and the daemon and
+// the script cache parse every run anew.
+final class Jit {
+
+    static final int THRESHOLD = Integer.getInteger("jlox.jit.threshold", 20);
+    static final boolean DEBUG = Boolean.getBoolean("jlox.jit.debug");
+
+    // HotSpot does not compile larger methods, so a block that would need
+    // one is left to the tree; the blocks nested in it are compiled alone
+    private static final int MAX_SIZE = 8000;
+
+    private static final String CODE = "com/jlox/Jit$Code";
+    private static final String DOUBLE = "java/lang/Double";
+    private static final String BOOLEAN = "java/lang/Boolean";
+    private static final String INTERPRETER = "com/jlox/Interpreter";
+    private static final String UNEXPECTED = "com/jlox/UnexpectedResultException";
+    private static final String RUN = "(Lcom/jlox/Interpreter;[Ljava/lang/Object;)V";
+
+    // locals of the generated run method; block locals and temporaries
+    // follow NODES
+    private static final int THIS = 0, INTERPRETER_ARG = 1, FRAME = 2, NODES = 3;
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    abstract static class Code {
+        // statements executed and variables read by one run, which
+        // Interpreter adds to its metrics; the code is straight-line
+        int statements;
+        int lookups;
+        Object[] nodes;
+        boolean invalid = false;
+
+        // frame: the frame of the enclosing block, or null
+        abstract void run(Interpreter interpreter, Object[] frame);
+
+        final Object deoptimize(Expr.Binary site, Object left, Object right) {
+            invalid = true;
+            return Specialization.generalize(site, left, right);
+        }
+
+        final Object deoptimize(Expr.Unary site, Object right) {
+            invalid = true;
+            return Specialization.generalize(site, right);
+        }
+    }
+
+    static Object binary(Expr.Binary site, Object left, Object right) {
+        return Specialization.binary(site, left, right);
+    }
+
+    static Object unary(Expr.Unary site, Object right) {
+        return Specialization.unary(site, right);
+    }
+
+    // A block the generator leaves to the tree.
+    @SuppressWarnings("serial")
+    static final class Unsupported extends RuntimeException {
+        Unsupported(String message) {
+            super(message, null, false, false);
+        }
+    }
+
+    // Returns null if the block cannot be compiled (it is too large for one
+    // method, say); the tree keeps running it then.
+    static Code compile(Stmt.Block block) {
+        try {
+            Generator generator = new Generator();
+            generator.generate(block);
+            byte[] bytes = generator.classFile.toBytes();
+
+            MethodHandles.Lookup lookup = LOOKUP.defineHiddenClass(bytes, false);
+            Code code = (Code)lookup.findConstructor(lookup.lookupClass(),
+                    MethodType.methodType(void.class)).invoke();
+            code.statements = generator.statements;
+            code.lookups = generator.lookups;
+            code.nodes = generator.nodes.toArray();
+            return code;
+        } catch (Unsupported | VerifyError | ClassFormatError e) {
+            // the last two are bugs in the generator, but the tree still
+            // runs the block correctly
+            if(DEBUG)
+                System.err.println("jlox: block not compiled: " + e);
+            return null;
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            // only the constructor handle declares Throwable
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Every expression is compiled to start on an empty operand stack and
+    // leave just its value there; what an operation has evaluated so far
+    // waits in temporary locals. A handler starts with an empty stack, so it
+    // finds all it needs in locals.
+    private static final class Generator implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+        final ClassFile classFile = new ClassFile("com/jlox/JitCode", CODE);
+        final List<Object> nodes = new ArrayList<>();
+        int statements = 0;
+        int lookups = 0;
+        private ClassFile.Method code;
+
+        // JVM local of slot 1 of the compiled block and each block nested in
+        // it, innermost last
+        private final List<Integer> blockLocals = new ArrayList<>();
+        private int nextLocal = NODES + 1;
+
+        void generate(Stmt.Block block) {
+            ClassFile.Method constructor = classFile.method(0, "<init>", "()V");
+            constructor.load(THIS);
+            constructor.op2(ClassFile.INVOKESPECIAL, classFile.methodRef(CODE, "<init>", "()V"), -1);
+            constructor.op(ClassFile.RETURN, 0);
+            constructor.finish();
+
+            code = classFile.method(0, "run", RUN);
+            code.locals(NODES + 1);
+            code.load(THIS);
+            code.op2(ClassFile.GETFIELD, classFile.fieldRef(CODE, "nodes", "[Ljava/lang/Object;"), 0);
+            code.store(NODES);
+            block.accept(this);
+            // the interpreter counted the block itself
+            statements--;
+            code.op(ClassFile.RETURN, 0);
+            code.finish();
+        }
+
+        // expressions too deep for the tree to visit are left to its
+        // evaluateDeep; compiling them would recurse as deeply
+        private void checkDepth(Stmt stmt) {
+            if(stmt.deep)
+                throw new Unsupported("Expression too deep to compile.");
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            checkDepth(stmt);
+            statements++;
+            compile(stmt.expression);
+            code.op(ClassFile.POP, -1);
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            checkDepth(stmt);
+            statements++;
+            compile(stmt.expression);
+            int value = temp(1);
+            code.store(value);
+            code.load(INTERPRETER_ARG);
+            code.load(value);
+            invoke(ClassFile.INVOKEVIRTUAL, INTERPRETER, "print", "(Ljava/lang/Object;)V", -2);
+            release(value);
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            checkDepth(stmt);
+            statements++;
+            if(stmt.initializer != null)
+                compile(stmt.initializer);
+            else
+                code.op(ClassFile.ACONST_NULL, 1);
+
+            if(stmt.slot >= 0) {
+                code.store(blockLocals.get(blockLocals.size()-1) + stmt.slot - 1);
+                return null;
+            }
+
+            int value = temp(1);
+            code.store(value);
+            code.load(INTERPRETER_ARG);
+            loadNode(stmt, "com/jlox/Stmt$Var");
+            code.load(value);
+            invoke(ClassFile.INVOKEVIRTUAL, INTERPRETER, "define",
+                    "(Lcom/jlox/Stmt$Var;Ljava/lang/Object;)V", -3);
+            release(value);
+            return null;
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            statements++;
+            int base = nextLocal;
+            blockLocals.add(base);
+            nextLocal += stmt.slots;
+            code.locals(nextLocal);
+            for (Stmt statement : stmt.statements) {
+                statement.accept(this);
+                // checked as it grows, before the class file's own limits
+                if(code.length() > MAX_SIZE)
+                    throw new Unsupported("Block too large to compile.");
+            }
+            blockLocals.remove(blockLocals.size()-1);
+            nextLocal = base;
+            return null;
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            compile(expr.value);
+            if(expr.depth >= 0 && expr.depth < blockLocals.size()) {
+                code.op(ClassFile.DUP, 1);
+                code.store(local(expr.depth, expr.slot));
+                return null;
+            }
+
+            int value = temp(1);
+            code.store(value);
+            if(expr.depth < 0) {
+                code.load(INTERPRETER_ARG);
+                loadNode(expr, "com/jlox/Expr$Assign");
+                code.load(value);
+                invoke(ClassFile.INVOKEVIRTUAL, INTERPRETER, "assignGlobal",
+                        "(Lcom/jlox/Expr$Assign;Ljava/lang/Object;)Ljava/lang/Object;", -2);
+            } else {
+                loadFrame(expr.depth);
+                code.pushInt(expr.slot);
+                code.load(value);
+                code.op(ClassFile.AASTORE, -3);
+                code.load(value);
+            }
+            release(value);
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            lookups++;
+            if(expr.depth < 0) {
+                code.load(INTERPRETER_ARG);
+                loadNode(expr, "com/jlox/Expr$Variable");
+                invoke(ClassFile.INVOKEVIRTUAL, INTERPRETER, "global",
+                        "(Lcom/jlox/Expr$Variable;)Ljava/lang/Object;", -1);
+            } else if(expr.depth < blockLocals.size()) {
+                code.load(local(expr.depth, expr.slot));
+            } else {
+                loadFrame(expr.depth);
+                code.pushInt(expr.slot);
+                code.op(ClassFile.AALOAD, -1);
+            }
+            return null;
+        }
+
+        private int local(int depth, int slot) {
+            return blockLocals.get(blockLocals.size()-1 - depth) + slot - 1;
+        }
+
+        // Pushes the interpreter frame depth blocks out from the innermost
+        // one, counting the compiled blocks.
+        private void loadFrame(int depth) {
+            code.load(FRAME);
+            for (int i = blockLocals.size(); i < depth; i++) {
+                code.op(ClassFile.ICONST_0, 1);
+                code.op(ClassFile.AALOAD, -1);
+                code.op2(ClassFile.CHECKCAST, classFile.classRef("[Ljava/lang/Object;"), 0);
+            }
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            if(Specialization.isArithmetic(expr.state)) {
+                // as in Interpreter.visitBinaryExpr: box the result, or take
+                // the value a failed operation produced instead
+                ClassFile.Label start = new ClassFile.Label();
+                ClassFile.Label end = new ClassFile.Label();
+                ClassFile.Label failed = new ClassFile.Label();
+                ClassFile.Label done = new ClassFile.Label();
+                code.place(start);
+                numberBinary(expr);
+                code.place(end);
+                box();
+                code.jump(ClassFile.GOTO, done, 0);
+
+                code.stack = 1;
+                code.handler(start, end, failed, UNEXPECTED);
+                code.place(failed);
+                unexpectedValue();
+                code.place(done);
+                return null;
+            }
+            if(Specialization.isComparison(expr.state)) {
+                numberBinary(expr);
+                return null;
+            }
+
+            compile(expr.left);
+            int left = temp(1);
+            code.store(left);
+            compile(expr.right);
+            int right = temp(1);
+            code.store(right);
+            loadNode(expr, "com/jlox/Expr$Binary");
+            code.load(left);
+            code.load(right);
+            invoke(ClassFile.INVOKESTATIC, "com/jlox/Jit", "binary",
+                    "(Lcom/jlox/Expr$Binary;Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;", -2);
+            release(left);
+            return null;
+        }
+
+        // Interpreter.arithmetic and Interpreter.compare: leaves a double for
+        // an arithmetic site and a Boolean for a comparison.
+        private void numberBinary(Expr.Binary expr) {
+            boolean arithmetic = Specialization.isArithmetic(expr.state);
+            int left = temp(2), right = temp(2), boxedLeft = temp(1), boxedRight = temp(1);
+            ClassFile.Label leftStart = new ClassFile.Label();
+            ClassFile.Label leftEnd = new ClassFile.Label();
+            ClassFile.Label rightStart = new ClassFile.Label();
+            ClassFile.Label rightEnd = new ClassFile.Label();
+            ClassFile.Label leftFailed = new ClassFile.Label();
+            ClassFile.Label rightFailed = new ClassFile.Label();
+            ClassFile.Label done = new ClassFile.Label();
+
+            code.place(leftStart);
+            number(expr.left);
+            code.place(leftEnd);
+            code.storeDouble(left);
+            code.place(rightStart);
+            number(expr.right);
+            code.place(rightEnd);
+            code.storeDouble(right);
+            code.loadDouble(left);
+            code.loadDouble(right);
+            switch(expr.operator.type) {
+                case PLUS:  code.op(ClassFile.DADD, -2); break;
+                case MINUS: code.op(ClassFile.DSUB, -2); break;
+                case STAR:  code.op(ClassFile.DMUL, -2); break;
+                case SLASH: code.op(ClassFile.DDIV, -2); break;
+                // NaN compares false: dcmpg gives 1 and dcmpl -1 for it
+                case LESS:          compare(ClassFile.DCMPG, ClassFile.IFGE); break;
+                case LESS_EQUAL:    compare(ClassFile.DCMPG, ClassFile.IFGT); break;
+                case GREATER:       compare(ClassFile.DCMPL, ClassFile.IFLE); break;
+                case GREATER_EQUAL: compare(ClassFile.DCMPL, ClassFile.IFLT); break;
+                default:
+                    throw new IllegalStateException("Unexpected number operator " + expr.operator.lexeme + ".");
+            }
+            code.jump(ClassFile.GOTO, done, 0);
+
+            // generalize(expr, e.value, evaluate(expr.right)); the variables
+            // of the right operand are counted once, either way they are read
+            code.stack = 1;
+            code.handler(leftStart, leftEnd, leftFailed, UNEXPECTED);
+            code.place(leftFailed);
+            unexpectedValue();
+            code.store(boxedLeft);
+            int counted = lookups;
+            compile(expr.right);
+            lookups = counted;
+            code.store(boxedRight);
+            generalize(expr, boxedLeft, boxedRight, arithmetic);
+            code.jump(ClassFile.GOTO, done, 0);
+
+            // generalize(expr, left, e.value)
+            code.stack = 1;
+            code.handler(rightStart, rightEnd, rightFailed, UNEXPECTED);
+            code.place(rightFailed);
+            unexpectedValue();
+            code.store(boxedRight);
+            code.loadDouble(left);
+            box();
+            code.store(boxedLeft);
+            generalize(expr, boxedLeft, boxedRight, arithmetic);
+            code.place(done);
+            release(left);
+        }
+
+        private void generalize(Expr.Binary expr, int left, int right, boolean arithmetic) {
+            code.load(THIS);
+            loadNode(expr, "com/jlox/Expr$Binary");
+            code.load(left);
+            code.load(right);
+            invoke(ClassFile.INVOKEVIRTUAL, CODE, "deoptimize",
+                    "(Lcom/jlox/Expr$Binary;Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;", -3);
+            if(arithmetic)
+                expectDouble();
+        }
+
+        // Leaves Boolean.TRUE or Boolean.FALSE for the two doubles on the
+        // stack; jumpIfFalse tests the result of the dcmp instruction.
+        private void compare(int dcmp, int jumpIfFalse) {
+            ClassFile.Label no = new ClassFile.Label();
+            ClassFile.Label done = new ClassFile.Label();
+            code.op(dcmp, -3);
+            code.jump(jumpIfFalse, no, -1);
+            code.op2(ClassFile.GETSTATIC, classFile.fieldRef(BOOLEAN, "TRUE", "Ljava/lang/Boolean;"), 1);
+            code.jump(ClassFile.GOTO, done, 0);
+            code.stack--;
+            code.place(no);
+            code.op2(ClassFile.GETSTATIC, classFile.fieldRef(BOOLEAN, "FALSE", "Ljava/lang/Boolean;"), 1);
+            code.place(done);
+        }
+
+        // Interpreter.evaluateDouble: leaves the value of expr as a double,
+        // or throws UnexpectedResultException with the boxed value.
+        private void number(Expr expr) {
+            if(expr instanceof Expr.Binary && Specialization.isArithmetic(((Expr.Binary)expr).state)) {
+                numberBinary((Expr.Binary)expr);
+            } else if(expr instanceof Expr.Literal && ((Expr.Literal)expr).value instanceof Double) {
+                code.pushDouble((Double)((Expr.Literal)expr).value);
+            } else if(expr instanceof Expr.Grouping) {
+                number(((Expr.Grouping)expr).expression);
+            } else if(expr instanceof Expr.Unary && ((Expr.Unary)expr).state == Specialization.NEGATE) {
+                negate((Expr.Unary)expr);
+            } else {
+                compile(expr);
+                expectDouble();
+            }
+        }
+
+        private void negate(Expr.Unary expr) {
+            int boxed = temp(1);
+            ClassFile.Label start = new ClassFile.Label();
+            ClassFile.Label end = new ClassFile.Label();
+            ClassFile.Label failed = new ClassFile.Label();
+            ClassFile.Label done = new ClassFile.Label();
+            code.place(start);
+            number(expr.right);
+            code.place(end);
+            code.op(ClassFile.DNEG, 0);
+            code.jump(ClassFile.GOTO, done, 0);
+
+            code.stack = 1;
+            code.handler(start, end, failed, UNEXPECTED);
+            code.place(failed);
+            unexpectedValue();
+            code.store(boxed);
+            code.load(THIS);
+            loadNode(expr, "com/jlox/Expr$Unary");
+            code.load(boxed);
+            invoke(ClassFile.INVOKEVIRTUAL, CODE, "deoptimize",
+                    "(Lcom/jlox/Expr$Unary;Ljava/lang/Object;)Ljava/lang/Object;", -2);
+            expectDouble();
+            code.place(done);
+            release(boxed);
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            compile(expr.right);
+            int right = temp(1);
+            code.store(right);
+            loadNode(expr, "com/jlox/Expr$Unary");
+            code.load(right);
+            invoke(ClassFile.INVOKESTATIC, "com/jlox/Jit", "unary",
+                    "(Lcom/jlox/Expr$Unary;Ljava/lang/Object;)Ljava/lang/Object;", -1);
+            release(right);
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            compile(expr.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            if(expr.value == null)
+                code.op(ClassFile.ACONST_NULL, 1);
+            else
+                loadNode(expr.value, null);
+            return null;
+        }
+
+        private void compile(Expr expr) {
+            expr.accept(this);
+        }
+
+        // Temporaries are allocated above the block locals and released in
+        // reverse order.
+        private int temp(int size) {
+            int local = nextLocal;
+            nextLocal += size;
+            code.locals(nextLocal);
+            return local;
+        }
+
+        private void release(int local) {
+            nextLocal = local;
+        }
+
+        // Replaces the UnexpectedResultException on the stack with its value.
+        private void unexpectedValue() {
+            code.op2(ClassFile.GETFIELD, classFile.fieldRef(UNEXPECTED, "value", "Ljava/lang/Object;"), 0);
+        }
+
+        private void expectDouble() {
+            invoke(ClassFile.INVOKESTATIC, INTERPRETER, "expectDouble", "(Ljava/lang/Object;)D", 1);
+        }
+
+        private void box() {
+            invoke(ClassFile.INVOKESTATIC, DOUBLE, "valueOf", "(D)Ljava/lang/Double;", -1);
+        }
+
+        // Pushes nodes[i] for a new index i holding value, cast to type.
+        private void loadNode(Object value, String type) {
+            nodes.add(value);
+            code.load(NODES);
+            code.pushInt(nodes.size() - 1);
+            code.op(ClassFile.AALOAD, -1);
+            if(type != null)
+                code.op2(ClassFile.CHECKCAST, classFile.classRef(type), 0);
+        }
+
+        private void invoke(int opcode, String owner, String name, String descriptor, int stackEffect) {
+            code.op2(opcode, classFile.methodRef(owner, name, descriptor), stackEffect);
+        }
+    }
+}
@@ -5,35 +5,183 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
 import java.util.List;
 
 
 public class Lox {
 
-    private static final Interpreter interpreter = new Interpreter();
-    public static boolean hadError = false;
-    public static boolean hadRuntimeError = false;
+    private static LoxContext context;
+    private static String output;
+    private static int flushThreshold = -1;
+    private static LoxEngine.Backend backend = LoxEngine.Backend.TREE;
+    private static boolean stream = false;
+    private static boolean dumpTokens = false;
+    private static Path cacheDir;
+    private static boolean optimize = false;
+    private static Path daemonSocket;
+    private static boolean profile = false;
+    private static Path profileOutput = Paths.get("lox-profile.folded");
+    private static Profiler profiler;
+    private static boolean jmx = false;
+    private static boolean check = false;
+    private static boolean jit = true;
 
     public static void main(String[] args) throws IOException{
-        if (args.length > 1) {
-            System.out.println("Usage: jlox [script]");
-            System.exit(64);
-        } else if (args.length == 1)
-            runFile(args[0]);
-        else
-            runPrompt();
+        List<String> paths = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.equals("--engine=vm"))
+                backend = LoxEngine.Backend.VM;
+            else if (arg.equals("--engine=tree"))
+                backend = LoxEngine.Backend.TREE;
+            else if (arg.equals("--engine=closure"))
+                backend = LoxEngine.Backend.CLOSURE;
+            else if (arg.equals("--engine=flat"))
+                backend = LoxEngine.Backend.FLAT;
+            else if (arg.equals("--stream"))
+                stream = true;
+            else if (arg.equals("--optimize"))
+                optimize = true;
+            else if (arg.equals("--tokens"))
+                dumpTokens = true;
+            else if (arg.startsWith("--cache-dir=") && arg.length() > "--cache-dir=".length())
+                cacheDir = Paths.get(arg.substring("--cache-dir=".length()));
+            else if (arg.startsWith("--output=") && arg.length() > "--output=".length())
+                output = arg.substring("--output=".length());
+            else if (arg.startsWith("--daemon=") && arg.length() > "--daemon=".length())
+                daemonSocket = Paths.get(arg.substring("--daemon=".length()));
+            else if (arg.equals("--profile"))
+                profile = true;
+            else if (arg.startsWith("--profile=") && arg.length() > "--profile=".length()) {
+                profile = true;
+                profileOutput = Paths.get(arg.substring("--profile=".length()));
+            }
+            else if (arg.equals("--jmx"))
+                jmx = true;
+            else if (arg.equals("--check"))
+                check = true;
+            else if (arg.equals("--no-jit"))
+                jit = false;
+            else if (arg.startsWith("--flush="))
+                flushThreshold = flushThreshold(arg.substring("--flush=".length()));
+            else if (arg.startsWith("--"))
+                usage();
+            else
+                paths.add(arg);
+        }
+        // only --check takes more than one path, wherever it is given
+        if (paths.size() > 1 && !check)
+            usage();
+        String script = paths.isEmpty() ? null : paths.get(0);
+
+        if (daemonSocket != null) {
+            if (script != null || check || stream || dumpTokens || output != null || profile)
+                usage();
+            LoxEngine engine = new LoxEngine(backend, optimize, cacheDir, jit);
+            LoxEngine.registerMBean();
+            Daemon.serve(engine, daemonSocket);
+            return;
+        }
+
+        // scripts buffer their output, the REPL shows every line right away
+        if (flushThreshold < 0)
+            flushThreshold = script != null ? OutputSink.BUFFER : OutputSink.LINE;
+        OutputSink out = output != null
+                ? OutputSink.file(Paths.get(output), flushThreshold)
+                : OutputSink.stdout(flushThreshold);
+
+        if (check) {
+            if (script == null || stream || dumpTokens || profile || jmx)
+                usage();
+            checkFiles(paths, out);
+            return;
+        }
+
+        // --tokens runs the Stmt tree it prints the tokens of
+        if (dumpTokens && backend == LoxEngine.Backend.FLAT)
+            usage();
+
+        // the REPL never reads the cache, every line would get an entry
+        LoxEngine engine = new LoxEngine(backend, optimize, script != null ? cacheDir : null, jit);
+        context = engine.newContext(out, System.err, script == null);
+        if (jmx)
+            LoxEngine.registerMBean();
+        if (profile) {
+            if (backend != LoxEngine.Backend.TREE)
+                usage();
+            profiler = context.profile();
+        }
+
+        try {
+            if (script != null)
+                runFile(script);
+            else
+                runPrompt();
+        } finally {
+            out.flush();
+        }
+        writeProfile();
+    }
+
+    // Hot-spot report on stderr, folded stacks for flame graphs in a file.
+    private static void writeProfile() throws IOException {
+        if (profiler == null)
+            return;
+        profiler.stop();
+        profiler.report(System.err);
+        profiler.writeFolded(profileOutput);
+        System.err.println("Folded stacks written to " + profileOutput);
+    }
+
+    // Exits with 65 if any file has a syntax error.
+    private static void checkFiles(List<String> paths, OutputSink out) throws IOException {
+        List<Path> roots = new ArrayList<>();
+        for (String path : paths)
+            roots.add(Paths.get(path));
+        List<Checker.Result> results = Checker.check(Checker.files(roots));
+        Checker.report(results, out);
+        out.flush();
+        if (Checker.failed(results))
+            System.exit(LoxContext.SYNTAX_ERROR);
+    }
+
+    private static void usage() {
+        System.out.println("Usage: jlox [--engine=tree|vm|closure|flat] [--stream] [--optimize] [--no-jit] [--tokens] [--cache-dir=<dir>]"
+                + " [--output=<file>] [--flush=line|exit|<chars>] [--profile[=<folded file>]] [--jmx] [script]");
+        System.out.println("       jlox [--engine=tree|vm|closure|flat] [--optimize] [--no-jit] [--cache-dir=<dir>] --daemon=<socket>");
+        System.out.println("       jlox --check [--output=<file>] <file or directory>...");
+        System.exit(64);
+    }
+
+    private static int flushThreshold(String policy) {
+        if (policy.equals("line"))
+            return OutputSink.LINE;
+        if (policy.equals("exit"))
+            return OutputSink.EXIT;
+        try {
+            int threshold = Integer.parseInt(policy);
+            if (threshold >= 0)
+                return threshold;
+        } catch (NumberFormatException e) {
+            // fall through to usage
+        }
+        usage();
+        return -1;
     }
 
 
     private static void runFile(String path) throws IOException{
         byte[] bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, Charset.defaultCharset()));
-        if (hadError)
-            System.exit(65);
-        if (hadRuntimeError)
-            System.exit(70);
+        String source = new String(bytes, Charset.defaultCharset());
+        int status = stream ? context.stream(source) : run(source);
+        context.out.flush();
+        if (status != LoxContext.OK) {
+            writeProfile();
+            System.exit(status);
+        }
     }
 
     private static void runPrompt() throws IOException{
@@ -41,32 +189,37 @@ public class Lox {
         BufferedReader reader = new BufferedReader(inputStream);
 
         while(true) {
-            System.out.print("> ");
+            context.out.print("> ");
+            context.out.flush();
             String line = reader.readLine();
             if (line == null)
                 break;
             run(line);
-            hadError = false;
         }
     }
 
-    private static void run(String source) {
-        Scanner scanner = new Scanner(source);
-        List<Token> tokens = scanner.scanTokens();
+    private static int run(String source) {
+        if (!dumpTokens)
+            return context.run(source);
 
-        for (Token token : tokens) {
-            System.out.println(token);
+        ErrorHandler errors = context.errors;
+        errors.reset();
+        Scanner scanner = new Scanner(source, errors);
+        TokenBuffer tokens = scanner.scanTokens();
+
+        for (int i = 0; i < tokens.size(); i++) {
+            context.out.println(tokens.token(i).toString());
         }
 
-        System.out.println("\n\n");
+        context.out.println("\n\n");
 
-        Parser parser = new Parser(tokens);
+        Parser parser = new Parser(tokens, errors);
         List<Stmt> statements = parser.parse();
-
-        if (hadError) return;
+        if (errors.hadError) return LoxContext.SYNTAX_ERROR;
 
         //System.out.println(new AstPrinter().print(expression));
-        interpreter.interpret(statements);
+        context.execute(statements);
+        return errors.hadRuntimeError ? LoxContext.RUNTIME_ERROR : LoxContext.OK;
     }
 
 }
\ No newline at end of file
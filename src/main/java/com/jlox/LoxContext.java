@@ -0,0 +1,160 @@
+package com.jlox;
+
+import java.io.PrintStream;
+import java.util.List;
+
+// One isolated Lox interpreter, created by LoxEngine.newContext. Globals
+// persist from one run to the next, like lines typed into the REPL, until
+// reset() is called. Nothing here is shared with other contexts: parsed
+// trees are private to the run that parsed them, so contexts can execute on
+// different threads at the same time.
+public final class LoxContext {
+
+    // run() results, the same as the exit codes of `jlox script`
+    public static final int OK = 0;
+    public static final int SYNTAX_ERROR = 65;
+    public static final int RUNTIME_ERROR = 70;
+
+    private final LoxEngine.Backend backend;
+    private final Optimizer optimizer;
+    private final ScriptCache cache;
+    private final boolean jit;
+    final OutputSink out;
+    final ErrorHandler errors;
+
+    private Interpreter interpreter;
+    private VM vm;
+    private ClosureInterpreter closures;
+    private FlatInterpreter flat;
+    private Profiler profiler;
+
+    LoxContext(LoxEngine.Backend backend, Optimizer optimizer, ScriptCache cache,
+            boolean jit, OutputSink out, PrintStream err) {
+        this.backend = backend;
+        this.optimizer = optimizer;
+        this.cache = cache;
+        this.jit = jit;
+        this.out = out;
+        this.errors = new ErrorHandler(out, err);
+        reset();
+    }
+
+    // Parses source and, if it has no syntax errors, executes it. Returns OK,
+    // SYNTAX_ERROR or RUNTIME_ERROR.
+    public int run(String source) {
+        LoxMetrics.scripts.increment();
+        errors.reset();
+        try {
+            if(flat != null) {
+                runFlat(source);
+                return status();
+            }
+            List<Stmt> statements = parse(source);
+            if(!errors.hadError)
+                execute(statements);
+        } finally {
+            out.flush();
+        }
+        return status();
+    }
+
+    // Like run, but executes statements while the rest of the source is still
+    // being scanned and parsed; see Pipeline. The flat backend always parses
+    // the whole source first.
+    int stream(String source) {
+        if(flat != null)
+            return run(source);
+        LoxMetrics.scripts.increment();
+        errors.reset();
+        try {
+            Pipeline.run(source, errors, this::execute);
+        } finally {
+            out.flush();
+        }
+        return status();
+    }
+
+    public boolean hadError() {
+        return errors.hadError;
+    }
+
+    public boolean hadRuntimeError() {
+        return errors.hadRuntimeError;
+    }
+
+    // Drops every global and the error state, leaving the context as new.
+    public void reset() {
+        errors.reset();
+        if(backend == LoxEngine.Backend.VM)
+            vm = new VM(out, errors);
+        else if(backend == LoxEngine.Backend.CLOSURE)
+            closures = new ClosureInterpreter(out, errors);
+        else if(backend == LoxEngine.Backend.FLAT)
+            flat = new FlatInterpreter(out, errors);
+        else if(profiler != null)
+            interpreter = ProfilingInterpreter.create(out, errors, profiler);
+        else
+            interpreter = new Interpreter(out, errors, jit);
+    }
+
+    // Profiles every later run on the tree backend; the others are not
+    // profiled.
+    Profiler profile() {
+        profiler = new Profiler();
+        reset();
+        return profiler;
+    }
+
+    List<Stmt> parse(String source) {
+        if(cache == null)
+            return ParallelParser.parse(source, errors);
+
+        // reuse the parse of an earlier run of the same source if there is one
+        List<Stmt> statements = cache.load(source);
+        if(statements == null) {
+            statements = ParallelParser.parse(source, errors);
+            if(!errors.hadError)
+                cache.store(source, statements);
+        }
+        return statements;
+    }
+
+    void execute(List<Stmt> statements) {
+        if(optimizer != null)
+            statements = optimizer.optimize(statements);
+        new Resolver(errors).resolve(statements);
+        if(errors.hadError)
+            return;
+
+        LoxEvents.Interpret event = LoxEvents.interpret();
+        if(vm != null)
+            vm.interpret(new BytecodeCompiler().compile(statements));
+        else if(closures != null)
+            closures.interpret(statements);
+        else
+            interpreter.interpret(statements);
+        if(event != null)
+            event.end(statements.size(), backend.name());
+    }
+
+    // The flat backend has its own parser, which also resolves; the optimizer
+    // and the script cache only work on Stmt trees.
+    private void runFlat(String source) {
+        FlatAst ast = FlatParser.parse(source, errors);
+        if(errors.hadError)
+            return;
+
+        LoxEvents.Interpret event = LoxEvents.interpret();
+        flat.interpret(ast);
+        if(event != null)
+            event.end(ast.statements, backend.name());
+    }
+
+    private int status() {
+        if(errors.hadError)
+            return SYNTAX_ERROR;
+        if(errors.hadRuntimeError)
+            return RUNTIME_ERROR;
+        return OK;
+    }
+}
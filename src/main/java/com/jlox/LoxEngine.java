@@ -0,0 +1,62 @@
+package com.jlox;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Path;
+
+// Embedding entry point. An engine only holds configuration shared by its
+// contexts (backend, optimizer, script cache) and may be used from any thread.
+// Each LoxContext is an isolated interpreter with its own globals, error state
+// and output; contexts run in parallel, but a single context is meant for one
+// thread at a time.
+//
+//     LoxEngine engine = new LoxEngine();
+//     LoxContext context = engine.newContext(System.out, System.err);
+//     int status = context.run("print 1 + 2;");
+public final class LoxEngine {
+
+    public enum Backend { TREE, VM, CLOSURE, FLAT }
+
+    private final Backend backend;
+    private final boolean optimize;
+    private final ScriptCache cache;
+    private final boolean jit;
+
+    public LoxEngine() {
+        this(Backend.TREE, false, null);
+    }
+
+    // cacheDirectory may be null to parse every script from scratch.
+    public LoxEngine(Backend backend, boolean optimize, Path cacheDirectory) {
+        this(backend, optimize, cacheDirectory, true);
+    }
+
+    // jit: whether the tree backend compiles hot blocks, see Jit.
+    public LoxEngine(Backend backend, boolean optimize, Path cacheDirectory, boolean jit) {
+        this.backend = backend;
+        this.optimize = optimize;
+        this.cache = cacheDirectory != null ? new ScriptCache(cacheDirectory) : null;
+        this.jit = jit;
+    }
+
+    // Makes the counters of every context in this JVM visible over JMX as
+    // com.jlox:type=Interpreter (see LoxMetricsMXBean). Starts the platform
+    // MBean server if nothing has yet; calling it again does nothing.
+    public static void registerMBean() {
+        LoxMetrics.register();
+    }
+
+    // Output is buffered and written to out every 64K characters, at the end
+    // of every run, and before an error is written to err.
+    public LoxContext newContext(OutputStream out, OutputStream err) {
+        PrintStream errors = err instanceof PrintStream ? (PrintStream)err : new PrintStream(err, true);
+        return newContext(OutputSink.of(out, OutputSink.BUFFER), errors, true);
+    }
+
+    // interactive: whether globals outlive a runtime error, which is the case
+    // for every context except the one behind a single `jlox script` run.
+    LoxContext newContext(OutputSink out, PrintStream err, boolean interactive) {
+        Optimizer optimizer = optimize ? new Optimizer(interactive) : null;
+        return new LoxContext(backend, optimizer, cache, jit, out, err);
+    }
+}
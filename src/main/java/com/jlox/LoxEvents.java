@@ -0,0 +1,134 @@
+package com.jlox;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+// JDK Flight Recorder events for the interpreter phases and runtime errors,
+// under "Lox" in JMC. Loading an event class starts the JFR machinery, which
+// takes longer than most scripts run, so the factories below return null and
+// load nothing until a recording has been started, from the command line or
+// later with `jcmd <pid> JFR.start`:
+//
+//   java -XX:StartFlightRecording:filename=lox.jfr -cp target/classes com.jlox.Lox script.lox
+//   jfr print --categories Lox lox.jfr
+final class LoxEvents {
+
+    private LoxEvents() {}
+
+    static Scan scan() {
+        if(!FlightRecorder.isInitialized())
+            return null;
+        Scan event = new Scan();
+        event.begin();
+        return event;
+    }
+
+    static Parse parse() {
+        if(!FlightRecorder.isInitialized())
+            return null;
+        Parse event = new Parse();
+        event.begin();
+        return event;
+    }
+
+    static Interpret interpret() {
+        if(!FlightRecorder.isInitialized())
+            return null;
+        Interpret event = new Interpret();
+        event.begin();
+        return event;
+    }
+
+    static void runtimeError(RuntimeError error) {
+        if(!FlightRecorder.isInitialized())
+            return;
+        RuntimeFailure event = new RuntimeFailure();
+        if(event.shouldCommit()) {
+            event.message = error.getMessage();
+            event.line = error.token.line;
+            event.commit();
+        }
+    }
+
+    @Name("com.jlox.Scan")
+    @Label("Scan")
+    @Category("Lox")
+    @Description("Scanning source, or one chunk of it, into tokens")
+    @StackTrace(false)
+    static final class Scan extends Event {
+        @Label("Source Length")
+        @Description("Characters scanned")
+        int sourceLength;
+
+        @Label("Tokens")
+        int tokens;
+
+        void end(int sourceLength, int tokens) {
+            if(shouldCommit()) {
+                this.sourceLength = sourceLength;
+                this.tokens = tokens;
+                commit();
+            }
+        }
+    }
+
+    @Name("com.jlox.Parse")
+    @Label("Parse")
+    @Category("Lox")
+    @Description("Parsing tokens, or one chunk of them, into statements")
+    @StackTrace(false)
+    static final class Parse extends Event {
+        @Label("Tokens")
+        int tokens;
+
+        @Label("Statements")
+        int statements;
+
+        void end(int tokens, int statements) {
+            if(shouldCommit()) {
+                this.tokens = tokens;
+                this.statements = statements;
+                commit();
+            }
+        }
+    }
+
+    @Name("com.jlox.Interpret")
+    @Label("Interpret")
+    @Category("Lox")
+    @Description("Executing parsed statements")
+    @StackTrace(false)
+    static final class Interpret extends Event {
+        @Label("Statements")
+        int statements;
+
+        @Label("Backend")
+        String backend;
+
+        void end(int statements, String backend) {
+            if(shouldCommit()) {
+                this.statements = statements;
+                this.backend = backend;
+                commit();
+            }
+        }
+    }
+
+    @Name("com.jlox.RuntimeError")
+    @Label("Runtime Error")
+    @Category("Lox")
+    @Description("A Lox runtime error that ended a run")
+    @StackTrace(false)
+    static final class RuntimeFailure extends Event {
+        @Label("Message")
+        String message;
+
+        @Label("Line")
+        int line;
+    }
+}
@@ -0,0 +1,57 @@
+package com.jlox;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+// Counters behind LoxMetricsMXBean. The interpreter and the VM count in
+// plain fields and add them here once per run, so the hot paths never touch
+// a shared variable; only string concatenation, which copies or allocates
+// anyway, adds directly.
+final class LoxMetrics implements LoxMetricsMXBean {
+
+    static final LongAdder scripts = new LongAdder();
+    static final LongAdder statements = new LongAdder();
+    static final LongAdder lookups = new LongAdder();
+    static final LongAdder concatenated = new LongAdder();
+
+    private static boolean registered = false;
+
+    private LoxMetrics() {}
+
+    // Starting the platform MBean server takes a quarter of a second, so only
+    // long-lived processes (the daemon, --jmx, embedders) pay for it.
+    static synchronized void register() {
+        if(registered)
+            return;
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(new LoxMetrics(), new ObjectName("com.jlox:type=Interpreter"));
+            registered = true;
+        } catch (JMException e) {
+            throw new IllegalStateException("Could not register the Lox MBean.", e);
+        }
+    }
+
+    @Override
+    public long getScriptsRun() {
+        return scripts.sum();
+    }
+
+    @Override
+    public long getStatementsExecuted() {
+        return statements.sum();
+    }
+
+    @Override
+    public long getVariableLookups() {
+        return lookups.sum();
+    }
+
+    @Override
+    public long getStringCharsConcatenated() {
+        return concatenated.sum();
+    }
+}
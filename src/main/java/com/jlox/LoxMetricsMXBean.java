@@ -0,0 +1,14 @@
+package com.jlox;
+
+// Cumulative counters of every LoxContext in the JVM, registered as
+// com.jlox:type=Interpreter by LoxEngine.registerMBean.
+public interface LoxMetricsMXBean {
+
+    long getScriptsRun();
+
+    long getStatementsExecuted();
+
+    long getVariableLookups();
+
+    long getStringCharsConcatenated();
+}
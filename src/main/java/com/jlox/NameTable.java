@@ -0,0 +1,53 @@
+package com.jlox;
+
+// Interns lexemes cut from one source: every occurrence of a name shares a
+// single String, with its hash already computed for the environment maps,
+// and a name seen before costs no substring at all. Shared by the buffers of
+// one Scanner and used only by the thread parsing them.
+final class NameTable {
+
+    private String[] names = new String[256];
+    private int[] hashes = new int[256];
+    private int size = 0;
+
+    String intern(String source, int start, int length) {
+        // String.hashCode of the lexeme, computed in place
+        int hash = 0;
+        for (int i = start; i < start + length; i++)
+            hash = 31 * hash + source.charAt(i);
+
+        int mask = names.length - 1;
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        while(names[slot] != null) {
+            String name = names[slot];
+            if(hashes[slot] == hash && name.length() == length
+                    && name.regionMatches(0, source, start, length))
+                return name;
+            slot = (slot + 1) & mask;
+        }
+
+        String name = source.substring(start, start + length);
+        names[slot] = name;
+        hashes[slot] = hash;
+        if(++size * 2 > names.length)
+            grow();
+        return name;
+    }
+
+    private void grow() {
+        String[] oldNames = names;
+        int[] oldHashes = hashes;
+        names = new String[oldNames.length * 2];
+        hashes = new int[oldNames.length * 2];
+        int mask = names.length - 1;
+        for (int i = 0; i < oldNames.length; i++) {
+            if(oldNames[i] == null)
+                continue;
+            int slot = (oldHashes[i] ^ (oldHashes[i] >>> 16)) & mask;
+            while(names[slot] != null)
+                slot = (slot + 1) & mask;
+            names[slot] = oldNames[i];
+            hashes[slot] = oldHashes[i];
+        }
+    }
+}
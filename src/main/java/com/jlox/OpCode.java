@@ -0,0 +1,39 @@
+package com.jlox;
+
+// Instruction set of the bytecode VM. Plain byte constants rather than an enum
+// so the dispatch loop in VM can switch directly on the code array. The _LONG
+// variants take a u24 constant index and are only emitted once a chunk has
+// more constants than a u16 can address.
+final class OpCode {
+    static final byte CONSTANT      = 0;  // u16 constant index
+    static final byte NIL           = 1;
+    static final byte TRUE          = 2;
+    static final byte FALSE         = 3;
+    static final byte POP           = 4;
+    static final byte DEFINE_GLOBAL = 5;  // u16 constant index of the name
+    static final byte GET_GLOBAL    = 6;  // u16 constant index of the name
+    static final byte SET_GLOBAL    = 7;  // u16 constant index of the name
+    static final byte EQUAL         = 8;
+    static final byte NOT_EQUAL     = 9;
+    static final byte GREATER       = 10;
+    static final byte GREATER_EQUAL = 11;
+    static final byte LESS          = 12;
+    static final byte LESS_EQUAL    = 13;
+    static final byte ADD           = 14;
+    static final byte SUBTRACT      = 15;
+    static final byte MULTIPLY      = 16;
+    static final byte DIVIDE        = 17;
+    static final byte NOT           = 18;
+    static final byte NEGATE        = 19;
+    static final byte PRINT         = 20;
+    static final byte RETURN        = 21;
+    static final byte GET_LOCAL     = 22; // u16 stack slot
+    static final byte SET_LOCAL     = 23; // u16 stack slot
+    static final byte END_BLOCK     = 24; // u16 number of locals to drop
+    static final byte CONSTANT_LONG      = 25; // u24 constant index
+    static final byte DEFINE_GLOBAL_LONG = 26; // u24 constant index of the name
+    static final byte GET_GLOBAL_LONG    = 27; // u24 constant index of the name
+    static final byte SET_GLOBAL_LONG    = 28; // u24 constant index of the name
+
+    private OpCode() {}
+}
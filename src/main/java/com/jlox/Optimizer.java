@@ -0,0 +1,265 @@
+package com.jlox;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// Optional pass between Parser and execution (--optimize). It rewrites the
+// tree bottom-up:
+//
+//  - groupings are dropped, they only matter to the parser
+//  - unary and binary operators over literals are folded, using the same
+//    generic nodes the interpreter runs; an operation that would raise a
+//    RuntimeError is left in place so it still fails at run time, at the same
+//    token
+//  - a top-level var statement is removed when the same name is defined again later
+//    with nothing in between reading or assigning it, and its initializer
+//    (after folding) is a literal or absent, so it can neither fail nor be
+//    observed
+//
+// In the REPL the environment outlives a runtime error, so there a store is
+// only removed when nothing between it and the redefinition can fail.
+//
+// Expressions are rewritten and searched with stacks of their own instead of
+// by recursion, since they may nest as deeply as Parser allows.
+class Optimizer implements Stmt.Visitor<Stmt> {
+
+    private final boolean interactive;
+
+    Optimizer(boolean interactive) {
+        this.interactive = interactive;
+    }
+
+    List<Stmt> optimize(List<Stmt> statements) {
+        List<Stmt> folded = new ArrayList<>(statements.size());
+        for (Stmt statement : statements)
+            folded.add(statement.accept(this));
+        return removeDeadStores(folded, interactive);
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+        Expr expression = fold(stmt.expression);
+        return expression == stmt.expression ? stmt : new Stmt.Expression(expression);
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Stmt.Print stmt) {
+        Expr expression = fold(stmt.expression);
+        return expression == stmt.expression ? stmt : new Stmt.Print(stmt.keyword, expression);
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+        if(stmt.initializer == null)
+            return stmt;
+        Expr initializer = fold(stmt.initializer);
+        return initializer == stmt.initializer ? stmt : new Stmt.Var(stmt.name, initializer);
+    }
+
+    // Only folds: a var in a block declares a local, which is never
+    // redefined in the same block.
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        List<Stmt> statements = new ArrayList<>(stmt.statements.size());
+        boolean changed = false;
+        for (Stmt statement : stmt.statements) {
+            Stmt folded = statement.accept(this);
+            statements.add(folded);
+            changed |= folded != statement;
+        }
+        return changed ? new Stmt.Block(statements) : stmt;
+    }
+
+    // Rewrites expr bottom-up. As in Interpreter.evaluateDeep, an operator is
+    // on the work stack twice: to push its operands, left on top, and to be
+    // rebuilt once they are folded.
+    private static Expr fold(Expr expr) {
+        Expr[] work = new Expr[64];
+        boolean[] apply = new boolean[64];
+        Expr[] folded = new Expr[64];
+        int top = 0, count = 0;
+        work[top++] = expr;
+
+        while(top > 0) {
+            Expr next = work[--top];
+            if(top + 3 > work.length) {
+                work = Arrays.copyOf(work, work.length * 2);
+                apply = Arrays.copyOf(apply, apply.length * 2);
+            }
+            if(count + 1 > folded.length)
+                folded = Arrays.copyOf(folded, folded.length * 2);
+
+            if(apply[top]) {
+                apply[top] = false;
+                if(next instanceof Expr.Binary) {
+                    Expr right = folded[--count];
+                    folded[count - 1] = binary((Expr.Binary)next, folded[count - 1], right);
+                } else if(next instanceof Expr.Unary) {
+                    folded[count - 1] = unary((Expr.Unary)next, folded[count - 1]);
+                } else {
+                    Expr.Assign assign = (Expr.Assign)next;
+                    Expr value = folded[count - 1];
+                    folded[count - 1] = value == assign.value ? assign : new Expr.Assign(assign.name, value);
+                }
+                continue;
+            }
+
+            if(next instanceof Expr.Binary) {
+                apply[top] = true;
+                work[top + 1] = ((Expr.Binary)next).right;
+                work[top + 2] = ((Expr.Binary)next).left;
+                top += 3;
+            } else if(next instanceof Expr.Unary) {
+                apply[top] = true;
+                work[top + 1] = ((Expr.Unary)next).right;
+                top += 2;
+            } else if(next instanceof Expr.Assign) {
+                apply[top] = true;
+                work[top + 1] = ((Expr.Assign)next).value;
+                top += 2;
+            } else if(next instanceof Expr.Grouping) {
+                // groupings are dropped
+                work[top++] = ((Expr.Grouping)next).expression;
+            } else {
+                folded[count++] = next;
+            }
+        }
+        return folded[0];
+    }
+
+    private static Expr binary(Expr.Binary expr, Expr left, Expr right) {
+        Expr.Binary binary = left == expr.left && right == expr.right
+                ? expr : new Expr.Binary(left, expr.operator, right);
+
+        if(left instanceof Expr.Literal && right instanceof Expr.Literal) {
+            try {
+                return new Expr.Literal(Specialization.generic(binary.operator,
+                        ((Expr.Literal)left).value, ((Expr.Literal)right).value));
+            } catch (RuntimeError error) {
+                // keep the operation so the error is raised when it runs
+            }
+        }
+        return binary;
+    }
+
+    private static Expr unary(Expr.Unary expr, Expr right) {
+        Expr.Unary unary = right == expr.right ? expr : new Expr.Unary(expr.operator, right);
+
+        if(right instanceof Expr.Literal) {
+            try {
+                return new Expr.Literal(Specialization.generic(unary.operator, ((Expr.Literal)right).value));
+            } catch (RuntimeError error) {
+                // keep the operation so the error is raised when it runs
+            }
+        }
+        return unary;
+    }
+
+    // Walks the statements backwards, tracking the names whose next use is a
+    // redefinition; an earlier definition of such a name is never observed.
+    private static List<Stmt> removeDeadStores(List<Stmt> statements, boolean interactive) {
+        Set<String> redefined = new HashSet<>();
+        Set<String> mentioned = new HashSet<>();
+        boolean[] dead = new boolean[statements.size()];
+        int removed = 0;
+
+        for (int i = statements.size() - 1; i >= 0; i--) {
+            Stmt statement = statements.get(i);
+            mentioned.clear();
+            Mentions mentions = new Mentions(mentioned);
+            statement.accept(mentions);
+
+            if(statement instanceof Stmt.Var) {
+                Stmt.Var var = (Stmt.Var)statement;
+                String name = var.name.lexeme;
+                if(redefined.contains(name)
+                        && (var.initializer == null || var.initializer instanceof Expr.Literal)) {
+                    dead[i] = true;
+                    removed++;
+                    continue;
+                }
+                redefined.add(name);
+            }
+            if(interactive && mentions.mayFail)
+                redefined.clear();
+            else
+                redefined.removeAll(mentioned);
+        }
+
+        if(removed == 0)
+            return statements;
+        List<Stmt> live = new ArrayList<>(statements.size() - removed);
+        for (int i = 0; i < statements.size(); i++) {
+            if(!dead[i])
+                live.add(statements.get(i));
+        }
+        return live;
+    }
+
+    // Collects every name a statement reads or assigns. After folding, only
+    // variable access and operators left unfolded can raise a RuntimeError.
+    private static final class Mentions implements Stmt.Visitor<Void> {
+        private final Set<String> names;
+        boolean mayFail = false;
+
+        Mentions(Set<String> names) {
+            this.names = names;
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            mention(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            mention(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            if(stmt.initializer != null)
+                mention(stmt.initializer);
+            return null;
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            for (Stmt statement : stmt.statements)
+                statement.accept(this);
+            return null;
+        }
+
+        // in any order, only the names and whether anything can fail matter
+        private void mention(Expr expr) {
+            ArrayDeque<Expr> pending = new ArrayDeque<>();
+            pending.push(expr);
+            while(!pending.isEmpty()) {
+                Expr next = pending.pop();
+                if(next instanceof Expr.Binary) {
+                    mayFail = true;
+                    pending.push(((Expr.Binary)next).left);
+                    pending.push(((Expr.Binary)next).right);
+                } else if(next instanceof Expr.Unary) {
+                    mayFail = true;
+                    pending.push(((Expr.Unary)next).right);
+                } else if(next instanceof Expr.Assign) {
+                    names.add(((Expr.Assign)next).name.lexeme);
+                    mayFail = true;
+                    pending.push(((Expr.Assign)next).value);
+                } else if(next instanceof Expr.Grouping) {
+                    pending.push(((Expr.Grouping)next).expression);
+                } else if(next instanceof Expr.Variable) {
+                    names.add(((Expr.Variable)next).name.lexeme);
+                    mayFail = true;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.jlox;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// Destination of print statements. Text is collected in memory and written
+// to the channel in one go once the pending text reaches the flush threshold:
+// LINE writes after every line (the REPL), BUFFER after 64K characters (the
+// default for scripts and embedders) and EXIT when flushed explicitly, which
+// Lox does before exiting and ErrorHandler before writing to stderr. No
+// threshold holds more than BUFFER characters, so a chatty script under EXIT
+// or a large --flush is still written out in BUFFER-sized pieces instead of
+// growing the heap until it ends.
+class OutputSink {
+
+    static final int LINE = 0;
+    static final int BUFFER = 64 * 1024;
+    static final int EXIT = Integer.MAX_VALUE;
+
+    private final WritableByteChannel channel;
+    private final CharsetEncoder encoder;
+    private final ByteBuffer bytes = ByteBuffer.allocate(BUFFER);
+    private final StringBuilder pending = new StringBuilder();
+    private final int threshold;
+
+    OutputSink(WritableByteChannel channel, Charset charset, int threshold) {
+        this.channel = channel;
+        // unmappable characters become '?', as they do through System.out
+        this.encoder = charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.threshold = Math.min(threshold, BUFFER);
+    }
+
+    // Standard output, written through its file descriptor rather than the
+    // synchronized System.out PrintStream.
+    static OutputSink stdout(int threshold) {
+        FileChannel channel = new FileOutputStream(FileDescriptor.out).getChannel();
+        String encoding = System.getProperty("sun.stdout.encoding");
+        Charset charset = encoding != null ? Charset.forName(encoding) : Charset.defaultCharset();
+        return new OutputSink(channel, charset, threshold);
+    }
+
+    static OutputSink file(Path path, int threshold) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        return new OutputSink(channel, Charset.defaultCharset(), threshold);
+    }
+
+    static OutputSink of(OutputStream out, int threshold) {
+        return new OutputSink(Channels.newChannel(out), Charset.defaultCharset(), threshold);
+    }
+
+    // Text without a line break is never written on its own; flush it.
+    synchronized void print(String text) {
+        pending.append(text);
+    }
+
+    synchronized void println(String text) {
+        pending.append(text).append('\n');
+        if(pending.length() > threshold)
+            flush();
+    }
+
+    synchronized void flush() {
+        if(pending.length() == 0)
+            return;
+
+        try {
+            CharBuffer chars = CharBuffer.wrap(pending);
+            encoder.reset();
+            CoderResult result;
+            do {
+                result = encoder.encode(chars, bytes, true);
+                drain();
+            } while(result.isOverflow());
+            while(encoder.flush(bytes).isOverflow())
+                drain();
+            drain();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            pending.setLength(0);
+            bytes.clear();
+        }
+    }
+
+    private void drain() throws IOException {
+        bytes.flip();
+        while(bytes.hasRemaining())
+            channel.write(bytes);
+        bytes.clear();
+    }
+}
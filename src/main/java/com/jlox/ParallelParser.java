@@ -0,0 +1,170 @@
+package com.jlox;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Parallel front end for large sources. The source is split after top-level
+// ';' characters (outside strings and comments, with no open parenthesis or
+// brace), and the chunks are scanned and then parsed on the common
+// ForkJoinPool.
+//
+// Every chunk is scanned and parsed with its own silent ErrorHandler. If any
+// chunk has an error, the whole source is parsed again sequentially with the
+// caller's handler, so diagnostics (and their order) are exactly those of
+// Parser. Without errors every chunk is a
+// complete run of declarations, which parses the same on its own as it does
+// in place.
+class ParallelParser {
+
+    static final int CHUNK_SIZE = 256 * 1024;
+
+    static List<Stmt> parse(String source, ErrorHandler errors) {
+        // splitting only pays for itself with more than one chunk and more
+        // than one worker; the length test comes first so short scripts never
+        // start up the common pool
+        if(source.length() <= CHUNK_SIZE || ForkJoinPool.getCommonPoolParallelism() < 2)
+            return sequential(source, errors);
+        return parse(source, CHUNK_SIZE, errors);
+    }
+
+    // Chunks of at least chunkSize characters, with no check for workers;
+    // tests use a few dozen to reach the multi-chunk path with short sources.
+    static List<Stmt> parse(String source, int chunkSize, ErrorHandler errors) {
+        List<Integer> bounds = split(source, chunkSize);
+        if(bounds.size() <= 2)
+            return sequential(source, errors);
+
+        int chunks = bounds.size() - 1;
+        TokenBuffer[] tokens = new TokenBuffer[chunks];
+        int[] lineCounts = new int[chunks];
+        AtomicBoolean failed = new AtomicBoolean();
+
+        // Phase one: scan every chunk with lines counted from 1.
+        List<ForkJoinTask<?>> scans = new ArrayList<>(chunks);
+        for (int i = 0; i < chunks; i++) {
+            final int chunk = i;
+            scans.add(ForkJoinTask.adapt(() -> {
+                ErrorHandler chunkErrors = ErrorHandler.silent();
+                Scanner scanner = new Scanner(source, bounds.get(chunk), bounds.get(chunk+1), chunkErrors);
+                tokens[chunk] = scanner.scanTokens();
+                if(chunkErrors.hadError)
+                    failed.set(true);
+                lineCounts[chunk] = scanner.line() - 1;
+            }));
+        }
+        ForkJoinTask.invokeAll(scans);
+        if(failed.get())
+            return sequential(source, errors);
+
+        // Lines are only known once the preceding chunks are scanned.
+        int offset = 0;
+        for (int i = 0; i < chunks; i++) {
+            if(offset != 0)
+                tokens[i].shiftLines(offset);
+            offset += lineCounts[i];
+        }
+
+        // Phase two: parse the chunks.
+        // set by index only, so the tasks can fill it in concurrently
+        List<List<Stmt>> statements = new ArrayList<>(Collections.nCopies(chunks, null));
+        List<ForkJoinTask<?>> parses = new ArrayList<>(chunks);
+        for (int i = 0; i < chunks; i++) {
+            final int chunk = i;
+            parses.add(ForkJoinTask.adapt(() -> {
+                ErrorHandler chunkErrors = ErrorHandler.silent();
+                statements.set(chunk, new Parser(tokens[chunk], chunkErrors).parse());
+                if(chunkErrors.hadError)
+                    failed.set(true);
+            }));
+        }
+        ForkJoinTask.invokeAll(parses);
+        if(failed.get())
+            return sequential(source, errors);
+
+        List<Stmt> merged = new ArrayList<>();
+        for (List<Stmt> chunk : statements)
+            merged.addAll(chunk);
+        return merged;
+    }
+
+    private static List<Stmt> sequential(String source, ErrorHandler errors) {
+        return new Parser(new Scanner(source, errors).scanTokens(), errors).parse();
+    }
+
+    // Chunk boundaries, starting with 0 and ending with source.length(). The
+    // walk mirrors how Scanner consumes strings and comments so a ';' inside
+    // either is never taken as a boundary.
+    static List<Integer> split(String source, int chunkSize) {
+        List<Integer> bounds = new ArrayList<>();
+        bounds.add(0);
+
+        int length = source.length();
+        int parens = 0, braces = 0;
+        int chunkStart = 0;
+        int i = 0;
+        while(i < length) {
+            char c = source.charAt(i);
+            switch(c) {
+                case '"':
+                    // ends at the closing quote or, unconsumed, at a newline;
+                    // a backslash always takes the next character with it
+                    i++;
+                    while(i < length && source.charAt(i) != '"' && source.charAt(i) != '\n')
+                        i += source.charAt(i) == '\\' ? 2 : 1;
+                    if(i < length && source.charAt(i) == '"')
+                        i++;
+                    continue;
+                case '/':
+                    if(charAt(source, i+1) == '/') {
+                        i += 2;
+                        while(i < length && source.charAt(i) != '\n')
+                            i++;
+                        continue;
+                    }
+                    if(charAt(source, i+1) == '*') {
+                        i += 2;
+                        while(i < length && source.charAt(i) != '*' && charAt(source, i+1) != '/')
+                            i++;
+                        continue;
+                    }
+                    break;
+                case '*':
+                    // "*/" is a single token
+                    if(charAt(source, i+1) == '/')
+                        i++;
+                    break;
+                case '(':
+                    parens++;
+                    break;
+                case ')':
+                    if(parens > 0) parens--;
+                    break;
+                case '{':
+                    braces++;
+                    break;
+                case '}':
+                    if(braces > 0) braces--;
+                    break;
+                case ';':
+                    if(parens == 0 && braces == 0 && i + 1 - chunkStart >= chunkSize && i + 1 < length) {
+                        chunkStart = i + 1;
+                        bounds.add(chunkStart);
+                    }
+                    break;
+                default:
+            }
+            i++;
+        }
+
+        bounds.add(length);
+        return bounds;
+    }
+
+    private static char charAt(String source, int index) {
+        return index < source.length() ? source.charAt(index) : '\0';
+    }
+}
@@ -2,33 +2,68 @@ package com.jlox;
 
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
 
 public class Parser {
 
     private static class ParseError extends RuntimeException {}
 
-    private final List<Token> tokens;
+    private TokenBuffer tokens;
     private int current = 0;
+    private final ErrorHandler errors;
 
-    Parser(List<Token> tokens) {
+    // Streaming input: further token batches and the last token of the
+    // previous batch, which previous() may still need.
+    private final BlockingQueue<TokenBuffer> batches;
+    private Token carried;
+    private int consumed = 0; // tokens of earlier batches
+
+    Parser(TokenBuffer tokens, ErrorHandler errors) {
         this.tokens = tokens;
+        this.batches = null;
+        this.errors = errors;
+    }
+
+    // Reads tokens batch by batch as Scanner.scanTokens(BlockingQueue, int)
+    // produces them.
+    Parser(BlockingQueue<TokenBuffer> batches, ErrorHandler errors) {
+        this.batches = batches;
+        this.errors = errors;
+        this.tokens = take();
     }
 
     List<Stmt> parse() {
+        LoxEvents.Parse event = LoxEvents.parse();
         List<Stmt> statements = new ArrayList<>();
-        while(!isAtEnd()) {
-            statements.add(declaration());
+        while(hasNext()) {
+            statements.add(next());
         }
 
+        if(event != null)
+            event.end(tokensRead(), statements.size());
         return statements;
     }
 
-    private boolean match(TokenType... types) {
-        for(TokenType type : types) {
-            if(check(type)) {
-                advance(); // why match is consuming the token??
-                return true;
-            }
+    // Tokens parsed so far, counting the EOF token once parsing is done.
+    int tokensRead() {
+        return consumed + current + 1;
+    }
+
+    boolean hasNext() {
+        return !isAtEnd();
+    }
+
+    // Parses a single declaration; null if it had a syntax error.
+    Stmt next() {
+        return declaration();
+    }
+
+    private boolean match(TokenType type) {
+        if(check(type)) {
+            advance(); // why match is consuming the token??
+            return true;
         }
         return false;
     }
@@ -36,34 +71,74 @@ public class Parser {
     private boolean check(TokenType type) {
         if(isAtEnd()) 
             return false;
-        return peek().type == type;
+        return peekType() == type;
     }
 
-    private Token advance() {
-        if(!isAtEnd()) 
+    private void advance() {
+        if(!isAtEnd()) {
             current++;
-        return previous();
+            if(current == tokens.size())
+                nextBatch();
+        }
+    }
+
+    private void nextBatch() {
+        carried = tokens.token(current-1);
+        consumed += tokens.size();
+        tokens = take();
+        current = 0;
+    }
+
+    private TokenBuffer take() {
+        try {
+            return batches.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Parsing interrupted.");
+        }
     }
 
     private boolean isAtEnd() {
-        return peek().type == TokenType.EOF;
+        return peekType() == TokenType.EOF;
     }
 
+    private TokenType peekType() {
+        return tokens.type(current);
+    }
+
+    // Materializes the current token; only needed for error reporting.
     private Token peek() {
-        return tokens.get(current);
+        return tokens.token(current);
     }
 
     private Token previous() {
-        return tokens.get(current-1);
+        if(current == 0)
+            return carried;
+        return tokens.token(current-1);
     }
 
-    private Token consume(TokenType type, String message) {
-        if (check(type)) return advance();
+    private TokenType previousType() {
+        if(current == 0)
+            return carried.type;
+        return tokens.type(current-1);
+    }
+
+    private Object previousLiteral() {
+        if(current == 0)
+            return carried.literal;
+        return tokens.literal(current-1);
+    }
+
+    private void consume(TokenType type, String message) {
+        if (check(type)) {
+            advance();
+            return;
+        }
         throw error(peek(), message);
     }
 
     private ParseError error(Token token, String message) {
-        ErrorHandler.error(token, message);
+        errors.error(token, message);
         return new ParseError();
     }
 
@@ -71,9 +146,9 @@ public class Parser {
         advance();
 
         while(!isAtEnd()) {
-            if(previous().type == TokenType.SEMICOLON) return;
+            if(previousType() == TokenType.SEMICOLON) return;
 
-            switch(peek().type) {
+            switch(peekType()) {
                 case CLASS:
                 case FUN:
                 case VAR: 
@@ -102,7 +177,8 @@ public class Parser {
     }
 
     private Stmt varDeclaration() {
-        Token name = consume(TokenType.IDENTIFIER, "Expect variable name.");
+        consume(TokenType.IDENTIFIER, "Expect variable name.");
+        Token name = previous();
 
         Expr initializer = null;
         if(match(TokenType.EQUAL))
@@ -115,13 +191,31 @@ public class Parser {
     private Stmt statement() {
         if(match(TokenType.PRINT)) 
             return printStatement();
+        if(match(TokenType.LEFT_BRACE))
+            return new Stmt.Block(block());
         return expressionStatement();
     }
 
+    // block → "{" declaration* "}" ;
+
+    private List<Stmt> block() {
+        List<Stmt> statements = new ArrayList<>();
+
+        while(!check(TokenType.RIGHT_BRACE) && !isAtEnd()) {
+            Stmt statement = declaration();
+            if(statement != null)
+                statements.add(statement);
+        }
+
+        consume(TokenType.RIGHT_BRACE, "Expect '}' after block.");
+        return statements;
+    }
+
     private Stmt printStatement() {
+        Token keyword = previous();
         Expr value = expression();
         consume(TokenType.SEMICOLON, "Expect ';' after value.");
-        return new Stmt.Print(value);
+        return new Stmt.Print(keyword, value);
     }
 
     private Stmt expressionStatement() {
@@ -130,125 +224,176 @@ public class Parser {
         return new Stmt.Expression(expr);
     }
 
-    private Expr expression() {
-        return assignment();
-    }
-
-    private Expr assignment() {
-        Expr expr = equality();
-
-        if(match(TokenType.EQUAL)) {
-            Token equals = previous();
-            Expr value = assignment();
-
-            if(expr instanceof Expr.Variable) {
-                Token name = ((Expr.Variable)expr).name;
-                return new Expr.Assign(name, value);
-            }
-
-            error(equals, "Invalid assignment target.");
-        }
-
-        return expr;
-    }
-
-    
-
-    // equality → comparison ( ( "!=" | "==" ) comparison )* ;
-
-    private Expr equality() {
-        Expr expr = comparison();
-
-        while(match(TokenType.BANG_EQUAL, TokenType.EQUAL_EQUAL)) {
-            Token operator = previous();
-            Expr right = comparison();
-            expr = new Expr.Binary(expr, operator, right);
-        }
-        return expr;
-    }
-
+    // expression → assignment ;
+    // assignment → equality ( "=" assignment )? ;
+    // equality   → comparison ( ( "!=" | "==" ) comparison )* ;
     // comparison → term ( ( ">" | ">=" | "<" | "<=" ) term )* ;
-
-    private Expr comparison() {
-        Expr expr = term();
-
-        while(match(TokenType.GREATER, TokenType.GREATER_EQUAL, TokenType.LESS, TokenType.LESS_EQUAL)) {
-            Token operator = previous();
-            Expr right = term();
-            expr = new Expr.Binary(expr, operator, right);
-        }
-        return expr;
+    // term       → factor ( ( "+" | "-" ) factor )* ;
+    // factor     → unary ( ( "/" | "*" ) unary )* ;
+    // unary      → ( "!" | "-" ) unary | primary ;
+    //
+    // Parsed without recursion, so nesting depth is limited by the heap and
+    // not by the thread's stack. What a recursive descent parser would keep
+    // in its call frames are pending frames here: a prefix operator, a left
+    // operand with its operator, an assignment target, an open parenthesis.
+    // Each operand is parsed in a loop and then completes as many frames as
+    // it can, innermost first.
+    //
+    // Binary operators go by precedence climbing: every one is
+    // left-associative, so its right operand only takes operators binding
+    // tighter. An assignment target is checked only once the value has been
+    // parsed, and an invalid one is reported without giving up on the
+    // expression. Trees and errors are those of the recursive rules.
+
+    static final int EQUALITY = 1;
+    static final int COMPARISON = 2;
+    static final int TERM = 3;
+    static final int FACTOR = 4;
+
+    // by TokenType ordinal; 0 for tokens that are no binary operator, also
+    // used by FlatParser
+    static final int[] PRECEDENCE = new int[TokenType.values().length];
+
+    static {
+        PRECEDENCE[TokenType.BANG_EQUAL.ordinal()] = EQUALITY;
+        PRECEDENCE[TokenType.EQUAL_EQUAL.ordinal()] = EQUALITY;
+        PRECEDENCE[TokenType.GREATER.ordinal()] = COMPARISON;
+        PRECEDENCE[TokenType.GREATER_EQUAL.ordinal()] = COMPARISON;
+        PRECEDENCE[TokenType.LESS.ordinal()] = COMPARISON;
+        PRECEDENCE[TokenType.LESS_EQUAL.ordinal()] = COMPARISON;
+        PRECEDENCE[TokenType.PLUS.ordinal()] = TERM;
+        PRECEDENCE[TokenType.MINUS.ordinal()] = TERM;
+        PRECEDENCE[TokenType.SLASH.ordinal()] = FACTOR;
+        PRECEDENCE[TokenType.STAR.ordinal()] = FACTOR;
     }
 
-    // term → factor ( ( "+" | "-" ) factor )*
+    // pending frames
+    private static final int UNARY = 0;    // operator
+    private static final int BINARY = 1;   // left operand, operator, precedence
+    private static final int ASSIGN = 2;   // target, '=' unless the target is valid
+    private static final int GROUP = 3;
 
-    private Expr term() {
-        Expr expr = factor();
+    private int[] frameKinds = new int[16];
+    private Expr[] frameExprs = new Expr[16];
+    private Token[] frameTokens = new Token[16];
+    private int[] framePrecedences = new int[16];
+    private int frames = 0;
 
-        while(match(TokenType.PLUS, TokenType.MINUS)) {
-            Token operator = previous();
-            Expr right = factor();
-            expr = new Expr.Binary(expr, operator, right);
-        }
-        return expr;
-    }
-
-    // factor → unary ( ( "/" | "*" ) unary )*;
-
-    private Expr factor() {
-        Expr expr = unary();
-    
-        while (match(TokenType.SLASH, TokenType.STAR)) {
-            Token operator = previous();
-            Expr right = unary();
-            expr = new Expr.Binary(expr, operator, right);
+    private Expr expression() {
+        // frames left by an expression that ended in a syntax error
+        frames = 0;
+
+        while(true) {
+            // the operand: prefix operators and parentheses up to a primary
+            TokenType type = peekType();
+            if(type == TokenType.BANG || type == TokenType.MINUS) {
+                advance();
+                push(UNARY, null, previous(), 0);
+                continue;
+            }
+            if(type == TokenType.LEFT_PAREN) {
+                advance();
+                push(GROUP, null, null, 0);
+                continue;
+            }
+            Expr expr = primary();
+
+            while(true) {
+                int top = frames - 1;
+                int kind = top >= 0 ? frameKinds[top] : -1;
+                if(kind == UNARY) {
+                    expr = new Expr.Unary(frameTokens[top], expr);
+                    frames--;
+                    continue;
+                }
+
+                // an operator binding tighter than the one expr is the right
+                // operand of takes expr as its left operand
+                int precedence = kind == BINARY ? framePrecedences[top] + 1 : EQUALITY;
+                // EOF is no operator, so this never reads past the end
+                int operatorPrecedence = PRECEDENCE[peekType().ordinal()];
+                if(operatorPrecedence >= precedence) {
+                    advance();
+                    push(BINARY, expr, previous(), operatorPrecedence);
+                    break;
+                }
+                if(kind == BINARY) {
+                    expr = new Expr.Binary(frameExprs[top], frameTokens[top], expr);
+                    frames--;
+                    continue;
+                }
+
+                // expr is a whole equality
+                if(match(TokenType.EQUAL)) {
+                    // '=' is only kept to report an invalid target
+                    push(ASSIGN, expr, expr instanceof Expr.Variable ? null : previous(), 0);
+                    break;
+                }
+                if(kind == ASSIGN) {
+                    Expr target = frameExprs[top];
+                    frames--;
+                    if(target instanceof Expr.Variable) {
+                        expr = new Expr.Assign(((Expr.Variable)target).name, expr);
+                    } else {
+                        error(frameTokens[top], "Invalid assignment target.");
+                        expr = target;
+                    }
+                    continue;
+                }
+                if(kind == GROUP) {
+                    consume(TokenType.RIGHT_PAREN, "Expect ')' after expression.");
+                    frames--;
+                    expr = new Expr.Grouping(expr);
+                    continue;
+                }
+                return expr;
+            }
         }
-        return expr;
     }
 
-    /* 
-     unary → ( "!" | "-" ) unary 
-             | primary;
-    */
-
-    private Expr unary() {
-        if(match(TokenType.BANG, TokenType.MINUS)) {
-            Token operator = previous();
-            Expr right = unary();
-            return new Expr.Unary(operator, right);
+    private void push(int kind, Expr expr, Token token, int precedence) {
+        if(frames == frameKinds.length) {
+            int capacity = frames * 2;
+            frameKinds = Arrays.copyOf(frameKinds, capacity);
+            frameExprs = Arrays.copyOf(frameExprs, capacity);
+            frameTokens = Arrays.copyOf(frameTokens, capacity);
+            framePrecedences = Arrays.copyOf(framePrecedences, capacity);
         }
-
-        return primary();
+        frameKinds[frames] = kind;
+        frameExprs[frames] = expr;
+        frameTokens[frames] = token;
+        framePrecedences[frames] = precedence;
+        frames++;
     }
 
     /* 
-        primary → NUMBER | STRING | "true" | "false" | "nil" 
+        primary → NUMBER | STRING | IDENTIFIER | "true" | "false" | "nil" 
                   | "(" expression ")" ;
+
+        Parentheses are handled by expression().
     */
 
     private Expr primary() {
-        if(match(TokenType.NUMBER, TokenType.STRING)) {
-            Expr expr = new Expr.Literal(previous().literal);
-            return expr;
-        }
-        if(match(TokenType.IDENTIFIER)) {
-            return new Expr.Variable(previous());
+        switch(peekType()) {
+            case NUMBER:
+            case STRING:
+                advance();
+                return new Expr.Literal(previousLiteral());
+            case IDENTIFIER:
+                advance();
+                return new Expr.Variable(previous());
+            case FALSE:
+                advance();
+                return new Expr.Literal(false);
+            case TRUE:
+                advance();
+                return new Expr.Literal(true);
+            case NIL:
+                advance();
+                return new Expr.Literal(null);
+            default:
+                throw error(peek(), "Expect expression.");
         }
-
-        if(match(TokenType.FALSE)) 
-            return new Expr.Literal(false);
-        if(match(TokenType.TRUE)) 
-            return new Expr.Literal(true);
-        if(match(TokenType.NIL)) 
-            return new Expr.Literal(null);
-        
-        if (match(TokenType.LEFT_PAREN)) {
-            Expr expr = expression();
-            consume(TokenType.RIGHT_PAREN, "Expect ')' after expression.");
-            return new Expr.Grouping(expr);
-        }
-
-        throw error(peek(), "Expect expression.");
     }
 
 
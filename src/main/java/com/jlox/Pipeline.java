@@ -0,0 +1,142 @@
+package com.jlox;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.function.Consumer;
+
+// Streaming front end for very large scripts. The scanner and the parser run
+// on their own threads, connected to each other and to the executing thread by
+// bounded queues, so only a few batches of tokens and statements are alive at
+// any time and the first statement runs as soon as it is parsed.
+//
+// Unlike LoxContext.run, statements execute before the rest of the file has been
+// checked. Execution stops once a syntax error has been found (parsing
+// continues so every syntax error is still reported); because the front end
+// runs ahead, statements parsed just before the error may be skipped too.
+// A runtime error stops execution and cancels the front end, and so does an
+// exception from either side.
+//
+// The scanner reports its errors as it goes. The parser's are collected and
+// reported once the scanner is done, so syntax errors come out in the same
+// order as with the sequential front end: every scan error, then every parse
+// error.
+class Pipeline {
+
+    private static final int TOKEN_BATCH = 4096;
+    private static final int STATEMENT_BATCH = 128;
+    private static final int QUEUE_CAPACITY = 16;
+
+    // end-of-stream marker, compared by identity
+    private static final List<Stmt> END = new ArrayList<>();
+
+    private final BlockingQueue<TokenBuffer> tokens = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final BlockingQueue<List<Stmt>> statements = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final ErrorHandler errors;
+    private final ErrorHandler parseErrors = ErrorHandler.collecting();
+    private volatile Throwable failure;
+
+    private Pipeline(ErrorHandler errors) {
+        this.errors = errors;
+    }
+
+    static void run(String source, ErrorHandler errors, Consumer<List<Stmt>> executor) {
+        new Pipeline(errors).execute(source, executor);
+    }
+
+    private void execute(String source, Consumer<List<Stmt>> executor) {
+        Thread scanner = new Thread(() -> scan(source), "lox-scanner");
+        Thread parser = new Thread(this::parse, "lox-parser");
+        scanner.setDaemon(true);
+        parser.setDaemon(true);
+        scanner.start();
+        parser.start();
+
+        try {
+            while(true) {
+                List<Stmt> batch = statements.take();
+                if(batch == END)
+                    break;
+                if(errors.hadError || parseErrors.hadError)
+                    continue;
+
+                executor.accept(batch);
+                if(errors.hadRuntimeError)
+                    return;
+            }
+            // a failed parser leaves the scanner blocked on a full queue
+            if(failure != null)
+                scanner.interrupt();
+            scanner.join();
+            parser.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } finally {
+            // nothing left to do after a runtime error, an exception from the
+            // executor or an interrupt; the threads are done otherwise
+            scanner.interrupt();
+            parser.interrupt();
+        }
+
+        for (ErrorHandler.Diagnostic diagnostic : parseErrors.diagnostics())
+            errors.report(diagnostic);
+        if(failure != null)
+            throw new IllegalStateException("Streaming front end failed.", failure);
+    }
+
+    private void scan(String source) {
+        try {
+            new Scanner(source, errors).scanTokens(tokens, TOKEN_BATCH);
+        } catch (InterruptedException e) {
+            // cancelled by the executing thread
+        } catch (Throwable t) {
+            failure = t;
+            // let the parser see the end of input
+            try {
+                TokenBuffer end = new TokenBuffer("");
+                end.add(TokenType.EOF, 0, 0, 0);
+                tokens.put(end);
+            } catch (InterruptedException e) {
+                // cancelled by the executing thread
+            }
+        }
+    }
+
+    private void parse() {
+        try {
+            LoxEvents.Parse event = LoxEvents.parse();
+            Parser parser = new Parser(tokens, parseErrors);
+            List<Stmt> batch = new ArrayList<>(STATEMENT_BATCH);
+            int parsed = 0;
+            while(parser.hasNext()) {
+                Stmt statement = parser.next();
+                if(statement == null)
+                    continue;
+
+                parsed++;
+                batch.add(statement);
+                if(batch.size() >= STATEMENT_BATCH) {
+                    statements.put(batch);
+                    batch = new ArrayList<>(STATEMENT_BATCH);
+                }
+            }
+            if(!batch.isEmpty())
+                statements.put(batch);
+            if(event != null)
+                event.end(parser.tokensRead(), parsed);
+            statements.put(END);
+        } catch (InterruptedException | CancellationException e) {
+            // cancelled by the executing thread
+        } catch (Throwable t) {
+            failure = t;
+            try {
+                statements.put(END);
+            } catch (InterruptedException e) {
+                // cancelled by the executing thread
+            }
+        }
+    }
+}
@@ -0,0 +1,329 @@
+package com.jlox;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.LockSupport;
+
+// Sampling profiler behind --profile. ProfilingInterpreter keeps a shadow
+// stack of the statements being executed and counts every execution on the
+// statement itself; a sampler thread looks at the stack every 2 ms.
+// The statement on top of the stack is charged self time, every one on it
+// (the blocks around it) total time.
+//
+// The sampler is started by the first run and kept until stop(), and only
+// counts samples while a run is executing. --stream executes every batch of
+// statements as a run of its own, and a sampler per run would lose the
+// samples due when each one starts.
+//
+// The sampler reads the stack without synchronization, so a sample may see a
+// frame that was just pushed or popped. That is the usual precision of a
+// sampling profiler and keeps the interpreter's side to two plain stores.
+class Profiler {
+
+    // on a single processor every sample preempts the interpreter, so this
+    // is about as often as a sample can be taken without slowing it 10%
+    private static final long INTERVAL = 2_000_000; // nanoseconds
+    private static final int REPORTED = 20;
+
+    // the shadow stack, written only by the interpreter thread
+    Stmt[] frames = new Stmt[64];
+    int depth = 0;
+
+    private final List<List<Stmt>> programs = new ArrayList<>();
+    private final Map<Stmt, long[]> nodeSamples = new IdentityHashMap<>();
+    private final Map<Integer, long[]> lineSamples = new HashMap<>();
+    private final Frame root = new Frame(null, 0);
+    private long samples = 0;
+    private long sampledNanos = 0;
+
+    private volatile boolean running;
+    // whether the interpreter is inside a run
+    private volatile boolean active;
+    private Thread sampler;
+    private long started;
+
+    void push(Stmt node) {
+        if(depth == frames.length)
+            frames = Arrays.copyOf(frames, depth * 2);
+        frames[depth++] = node;
+    }
+
+    void start(List<Stmt> statements) {
+        synchronized(this) {
+            programs.add(statements);
+        }
+        depth = 0;
+        started = System.nanoTime();
+        active = true;
+        if(sampler == null) {
+            running = true;
+            sampler = new Thread(this::sample, "lox-profiler");
+            sampler.setDaemon(true);
+            sampler.start();
+        }
+    }
+
+    // The end of a run.
+    void pause() {
+        active = false;
+        synchronized(this) {
+            sampledNanos += System.nanoTime() - started;
+        }
+        depth = 0;
+    }
+
+    // Ends sampling for good, before the profile is written.
+    void stop() {
+        if(sampler == null)
+            return;
+        running = false;
+        // rather than waiting out the interval
+        LockSupport.unpark(sampler);
+        try {
+            sampler.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        sampler = null;
+    }
+
+    // Kept cheap, as on a single processor the sampler's time is taken from
+    // the interpreter: no strings are built until the profile is written.
+    private void sample() {
+        Stmt[] snapshot = new Stmt[64];
+        int[] lines = new int[64];
+
+        while(running) {
+            LockSupport.parkNanos(INTERVAL);
+            if(!active)
+                continue;
+
+            Stmt[] current = frames;
+            int size = Math.min(depth, current.length);
+            if(snapshot.length < size) {
+                snapshot = new Stmt[current.length];
+                lines = new int[current.length];
+            }
+            System.arraycopy(current, 0, snapshot, 0, size);
+
+            synchronized(this) {
+                // a sample between statements still counts towards the time
+                samples++;
+                Frame frame = root;
+                int line = 0;
+                for (int i = 0; i < size; i++) {
+                    Stmt node = snapshot[i];
+                    if(node == null)
+                        break;
+                    Token token = token(node);
+                    // a block, or an expression statement without a token of
+                    // its own, belongs to the line of the statement around it
+                    if(token != null)
+                        line = token.line;
+                    lines[i] = line;
+                    frame = frame.child(node, line);
+
+                    if(!contains(snapshot, i, node))
+                        nodeSamples.computeIfAbsent(node, k -> new long[2])[1]++;
+                    if(!contains(lines, i, line))
+                        lineSamples.computeIfAbsent(line, k -> new long[2])[1]++;
+
+                    if(i == size - 1 || snapshot[i+1] == null) {
+                        nodeSamples.get(node)[0]++;
+                        lineSamples.get(line)[0]++;
+                    }
+                }
+                frame.self++;
+            }
+        }
+    }
+
+    // The hottest lines, then the hottest individual statements.
+    synchronized void report(PrintStream out) {
+        double millisPerSample = samples == 0 ? 0 : sampledNanos / 1e6 / samples;
+
+        Map<Integer, Long> executions = new TreeMap<>();
+        Map<Stmt, Integer> nodeLines = new IdentityHashMap<>();
+        for (List<Stmt> program : programs) {
+            for (Stmt statement : program)
+                statement.accept(new Counter(executions, nodeLines));
+        }
+
+        out.printf("Profile: %d samples over %.1f ms%n%n", samples, sampledNanos / 1e6);
+        out.printf("%6s %14s %10s %7s %10s %7s%n", "line", "executions", "self ms", "self%", "total ms", "total%");
+        List<Integer> lines = new ArrayList<>(executions.keySet());
+        lines.sort((a, b) -> Long.compare(self(lineSamples.get(b)), self(lineSamples.get(a))));
+        for (int line : lines.subList(0, Math.min(lines.size(), REPORTED))) {
+            long[] counts = lineSamples.getOrDefault(line, new long[2]);
+            out.printf("%6d %14d %10.1f %6.1f%% %10.1f %6.1f%%%n", line, executions.get(line),
+                    counts[0] * millisPerSample, percent(counts[0]),
+                    counts[1] * millisPerSample, percent(counts[1]));
+        }
+
+        List<Stmt> nodes = new ArrayList<>(nodeSamples.keySet());
+        nodes.sort((a, b) -> Long.compare(nodeSamples.get(b)[0], nodeSamples.get(a)[0]));
+        out.printf("%nHottest statements%n");
+        out.printf("%-32s %14s %10s %10s%n", "statement", "executions", "self ms", "total ms");
+        for (Stmt node : nodes.subList(0, Math.min(nodes.size(), REPORTED))) {
+            long[] counts = nodeSamples.get(node);
+            Integer line = nodeLines.get(node);
+            out.printf("%-32s %14d %10.1f %10.1f%n", frame(node, token(node), line != null ? line : 0),
+                    node.hits, counts[0] * millisPerSample, counts[1] * millisPerSample);
+        }
+    }
+
+    // One line per distinct stack, root first, frames separated by ';' and
+    // followed by the sample count: the input format of flamegraph.pl and
+    // speedscope.
+    synchronized void writeFolded(Path path) throws IOException {
+        try (Writer writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            for (Frame child : root.children.values())
+                writeFolded(writer, child, "");
+        }
+    }
+
+    private static void writeFolded(Writer writer, Frame frame, String prefix) throws IOException {
+        String stack = prefix + frame(frame.node, token(frame.node), frame.line);
+        if(frame.self > 0)
+            writer.write(stack + " " + frame.self + "\n");
+        for (Frame child : frame.children.values())
+            writeFolded(writer, child, stack + ";");
+    }
+
+    // whether the first length entries of stack hold node (or line); stacks
+    // are shallow enough for a linear search
+    private static boolean contains(Stmt[] stack, int length, Stmt node) {
+        for (int i = 0; i < length; i++) {
+            if(stack[i] == node)
+                return true;
+        }
+        return false;
+    }
+
+    private static boolean contains(int[] lines, int length, int line) {
+        for (int i = 0; i < length; i++) {
+            if(lines[i] == line)
+                return true;
+        }
+        return false;
+    }
+
+    private double percent(long count) {
+        return samples == 0 ? 0 : 100.0 * count / samples;
+    }
+
+    private static long self(long[] counts) {
+        return counts == null ? 0 : counts[0];
+    }
+
+    private static String frame(Stmt node, Token token, int line) {
+        String position = token != null ? token.line + ":" + token.column : String.valueOf(line);
+        return label(node) + " @" + position;
+    }
+
+    private static Token token(Stmt node) {
+        if(node instanceof Stmt.Expression) {
+            Expr expression = ((Stmt.Expression)node).expression;
+            while(expression instanceof Expr.Grouping)
+                expression = ((Expr.Grouping)expression).expression;
+            if(expression instanceof Expr.Binary)   return ((Expr.Binary)expression).operator;
+            if(expression instanceof Expr.Unary)    return ((Expr.Unary)expression).operator;
+            if(expression instanceof Expr.Variable) return ((Expr.Variable)expression).name;
+            if(expression instanceof Expr.Assign)   return ((Expr.Assign)expression).name;
+            return null;
+        }
+        if(node instanceof Stmt.Var)      return ((Stmt.Var)node).name;
+        if(node instanceof Stmt.Print)    return ((Stmt.Print)node).keyword;
+        return null;
+    }
+
+    private static String label(Stmt node) {
+        if(node instanceof Stmt.Var)        return "var " + ((Stmt.Var)node).name.lexeme;
+        if(node instanceof Stmt.Print)      return "print";
+        if(node instanceof Stmt.Block)      return "block";
+        return "expression";
+    }
+
+    // A node of the sampled call tree: the samples taken with exactly this
+    // path from the root on the stack.
+    private static final class Frame {
+        final Stmt node;
+        final int line;
+        final Map<Stmt, Frame> children = new IdentityHashMap<>();
+        long self = 0;
+
+        Frame(Stmt node, int line) {
+            this.node = node;
+            this.line = line;
+        }
+
+        Frame child(Stmt node, int line) {
+            Frame child = children.get(node);
+            if(child == null) {
+                child = new Frame(node, line);
+                children.put(node, child);
+            }
+            return child;
+        }
+    }
+
+    // Sums execution counts per line. As in the samples, statements without
+    // a token of their own (blocks, an expression statement of a literal) are
+    // on the line of the statement around them, and that is line 0 as blocks
+    // have none either.
+    private static final class Counter implements Stmt.Visitor<Void> {
+        private final Map<Integer, Long> executions;
+        private final Map<Stmt, Integer> nodeLines;
+
+        Counter(Map<Integer, Long> executions, Map<Stmt, Integer> nodeLines) {
+            this.executions = executions;
+            this.nodeLines = nodeLines;
+        }
+
+        private void count(Stmt node, long hits) {
+            Token token = token(node);
+            int line = token != null ? token.line : 0;
+            nodeLines.put(node, line);
+            if(hits > 0)
+                executions.merge(line, hits, Long::sum);
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            count(stmt, stmt.hits);
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            count(stmt, stmt.hits);
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            count(stmt, stmt.hits);
+            return null;
+        }
+
+        // a block is not an execution of its own, only its statements count
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            count(stmt, 0);
+            for (Stmt statement : stmt.statements)
+                statement.accept(this);
+            return null;
+        }
+    }
+}
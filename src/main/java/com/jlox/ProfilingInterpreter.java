@@ -0,0 +1,69 @@
+package com.jlox;
+
+import java.util.List;
+
+// Interpreter for --profile. Every executed statement is counted and kept on
+// the Profiler's shadow stack while it runs. Expressions are evaluated exactly
+// as without the profiler, so their time is charged to their statement;
+// counting and pushing every Expr as well cost more than the sampling.
+class ProfilingInterpreter extends Interpreter {
+
+    private final Profiler profiler;
+
+    ProfilingInterpreter(OutputSink out, ErrorHandler errors, Profiler profiler) {
+        super(out, errors, false);
+        this.profiler = profiler;
+    }
+
+    // Typed as Interpreter so that verifying LoxContext does not load this
+    // class on every run that is not profiled.
+    static Interpreter create(OutputSink out, ErrorHandler errors, Profiler profiler) {
+        return new ProfilingInterpreter(out, errors, profiler);
+    }
+
+    @Override
+    void interpret(List<Stmt> statements) {
+        profiler.start(statements);
+        try {
+            super.interpret(statements);
+        } finally {
+            profiler.pause();
+        }
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        stmt.hits++;
+        profiler.push(stmt);
+        super.visitExpressionStmt(stmt);
+        profiler.depth--;
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        stmt.hits++;
+        profiler.push(stmt);
+        super.visitPrintStmt(stmt);
+        profiler.depth--;
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        stmt.hits++;
+        profiler.push(stmt);
+        super.visitVarStmt(stmt);
+        profiler.depth--;
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        stmt.hits++;
+        profiler.push(stmt);
+        super.visitBlockStmt(stmt);
+        profiler.depth--;
+        return null;
+    }
+}
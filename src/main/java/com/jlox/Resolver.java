@@ -0,0 +1,215 @@
+package com.jlox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Static pass between parsing and execution. Every block gets the number of
+// locals it declares, and every reference to a local the (depth, slot) of its
+// declaration: how many frames out from the innermost one it lives, and its
+// index there. Slot 0 of a frame links to the enclosing frame, so locals are
+// numbered from 1. Names declared in no block are globals and keep depth -1.
+//
+// Errors are reported as syntax errors, so nothing runs if resolution fails.
+//
+// Expressions are visited recursively down to Interpreter.MAX_DEPTH; deeper
+// subexpressions are walked with an explicit stack, so nesting is limited
+// by the heap as in Parser. A statement whose expression nests deeper than
+// that is marked deep for the interpreter.
+class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+
+    private static final class Scope {
+        final Map<String, Integer> slots = new HashMap<>();
+        // the variable whose initializer is being resolved
+        String declaring;
+    }
+
+    private final ErrorHandler errors;
+    // innermost last; empty at the top level
+    private final List<Scope> scopes = new ArrayList<>();
+
+    // nesting of the expression being visited, 1 for a statement's, and the
+    // deepest nesting in the statement's expression so far
+    private int depth = 0;
+    private int deepest;
+    // subexpressions still to walk past Interpreter.MAX_DEPTH, and their
+    // depths; while walking, resolve(Expr) pushes instead of visiting
+    private Expr[] pending = new Expr[16];
+    private int[] pendingDepths = new int[16];
+    private int count = 0;
+    private boolean walking = false;
+
+    Resolver(ErrorHandler errors) {
+        this.errors = errors;
+    }
+
+    void resolve(List<Stmt> statements) {
+        for (Stmt statement : statements)
+            resolve(statement);
+    }
+
+    private void resolve(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    // Resolves the expression of a statement and returns whether it is deep.
+    private boolean resolveDeep(Expr expr) {
+        deepest = 0;
+        resolve(expr);
+        return deepest > Interpreter.MAX_DEPTH;
+    }
+
+    private void resolve(Expr expr) {
+        if(walking) {
+            push(expr, depth + 1);
+            return;
+        }
+        if(depth == Interpreter.MAX_DEPTH) {
+            walk(expr);
+            return;
+        }
+        depth++;
+        if(depth > deepest)
+            deepest = depth;
+        expr.accept(this);
+        depth--;
+    }
+
+    // Visits expr and everything in it from the stack. The subexpressions a
+    // visit pushes are reversed, so they come off in the order it resolved
+    // them.
+    private void walk(Expr expr) {
+        int enclosing = depth;
+        walking = true;
+        push(expr, depth + 1);
+        while(count > 0) {
+            count--;
+            Expr next = pending[count];
+            pending[count] = null;
+            depth = pendingDepths[count];
+            if(depth > deepest)
+                deepest = depth;
+            int first = count;
+            next.accept(this);
+            for (int i = first, j = count-1; i < j; i++, j--) {
+                Expr swapped = pending[i];
+                pending[i] = pending[j];
+                pending[j] = swapped;
+            }
+        }
+        walking = false;
+        depth = enclosing;
+    }
+
+    private void push(Expr expr, int depth) {
+        if(count == pending.length) {
+            pending = Arrays.copyOf(pending, count * 2);
+            pendingDepths = Arrays.copyOf(pendingDepths, count * 2);
+        }
+        pending[count] = expr;
+        pendingDepths[count] = depth;
+        count++;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        Scope scope = new Scope();
+        scopes.add(scope);
+        resolve(stmt.statements);
+        scopes.remove(scopes.size()-1);
+        stmt.slots = scope.slots.size();
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        stmt.deep = resolveDeep(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        stmt.deep = resolveDeep(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if(scopes.isEmpty()) {
+            if(stmt.initializer != null)
+                stmt.deep = resolveDeep(stmt.initializer);
+            return null;
+        }
+
+        Scope scope = scopes.get(scopes.size()-1);
+        String name = stmt.name.lexeme;
+        if(scope.slots.containsKey(name))
+            errors.error(stmt.name, "Already a variable with this name in this scope.");
+        else
+            scope.slots.put(name, scope.slots.size() + 1);
+        stmt.slot = scope.slots.get(name);
+
+        if(stmt.initializer != null) {
+            scope.declaring = name;
+            stmt.deep = resolveDeep(stmt.initializer);
+            scope.declaring = null;
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        resolve(expr.value);
+        for (int i = scopes.size()-1; i >= 0; i--) {
+            Integer slot = scopes.get(i).slots.get(expr.name.lexeme);
+            if(slot != null) {
+                expr.depth = scopes.size()-1 - i;
+                expr.slot = slot;
+                return null;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        for (int i = scopes.size()-1; i >= 0; i--) {
+            Scope scope = scopes.get(i);
+            Integer slot = scope.slots.get(expr.name.lexeme);
+            if(slot != null) {
+                if(expr.name.lexeme.equals(scope.declaring))
+                    errors.error(expr.name, "Can't read local variable in its own initializer.");
+                expr.depth = scopes.size()-1 - i;
+                expr.slot = slot;
+                return null;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        resolve(expr.left);
+        resolve(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        resolve(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        resolve(expr.right);
+        return null;
+    }
+}
@@ -0,0 +1,109 @@
+package com.jlox;
+
+import java.util.ArrayDeque;
+
+// Lox string built by concatenation. A Lox string value is either a String
+// (literals, short results) or a Rope, so code that accepts strings tests for
+// CharSequence. Joining two strings is O(1); the characters are copied once,
+// when the value is first printed or compared, and the flat result replaces
+// the tree.
+//
+// A rope can be reached from several threads (a literal the optimizer folded
+// into a shared tree, a value in a pooled context), so flat is volatile and
+// written before the children are dropped: whoever finds a child null finds
+// flat set. Like a StringBuilder, a rope has no equals or hashCode of its
+// own; Lox compares strings by content, see Interpreter.isEqual.
+final class Rope implements CharSequence {
+
+    // results up to this length are copied right away, and a short piece
+    // appended to a rope is merged into its last leaf while that stays short
+    private static final int LEAF = 256;
+
+    private volatile CharSequence left;
+    private volatile CharSequence right;
+    private volatile String flat;
+    private final int length;
+
+    private Rope(CharSequence left, CharSequence right) {
+        this.left = left;
+        this.right = right;
+        this.length = left.length() + right.length();
+    }
+
+    static CharSequence concat(CharSequence left, CharSequence right) {
+        int length = left.length() + right.length();
+        LoxMetrics.concatenated.add(length);
+        if(length <= LEAF)
+            return left.toString().concat(right.toString());
+
+        if(right.length() < LEAF && left instanceof Rope) {
+            Rope rope = (Rope)left;
+            CharSequence first = rope.left, last = rope.right;
+            // both are null once the rope is flat
+            if(first != null && last instanceof String && last.length() + right.length() <= LEAF)
+                return new Rope(first, ((String)last).concat(right.toString()));
+        }
+        return new Rope(left, right);
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        return toString().charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return toString().substring(start, end);
+    }
+
+    @Override
+    public String toString() {
+        String flat = this.flat;
+        return flat != null ? flat : flatten();
+    }
+
+    // Appending in a loop builds a tree as deep as the number of appends, so
+    // the leaves are collected with an explicit stack rather than recursion.
+    //
+    // Another thread may flatten a rope while this one reads it; either the
+    // children are both still there or flat is.
+    private String flatten() {
+        char[] chars = new char[length];
+        int position = 0;
+
+        ArrayDeque<CharSequence> pending = new ArrayDeque<>();
+        pending.push(this);
+        while(!pending.isEmpty()) {
+            CharSequence piece = pending.pop();
+            if(piece instanceof Rope) {
+                Rope rope = (Rope)piece;
+                String text = rope.flat;
+                if(text == null) {
+                    CharSequence first = rope.left, last = rope.right;
+                    if(first != null && last != null) {
+                        pending.push(last);
+                        pending.push(first);
+                        continue;
+                    }
+                    text = rope.flat;
+                }
+                piece = text;
+            }
+
+            String text = piece.toString();
+            text.getChars(0, text.length(), chars, position);
+            position += text.length();
+        }
+
+        String flat = new String(chars);
+        this.flat = flat;
+        left = null;
+        right = null;
+        return flat;
+    }
+}
@@ -1,45 +1,42 @@
 package com.jlox;
 
-import java.util.List;
-import java.util.Map;
-import java.util.HashMap;
-import java.util.ArrayList;
+import java.util.concurrent.BlockingQueue;
 
 
 public class Scanner {
 
-    private static final Map<String, TokenType> keywords;
+    // 10^0 to 10^22, all exact doubles
+    private static final double[] POWERS_OF_TEN = new double[23];
     static {
-        keywords = new HashMap<>();
-        keywords.put("and",    TokenType.AND);
-        keywords.put("class",  TokenType.CLASS);
-        keywords.put("else",   TokenType.ELSE);
-        keywords.put("false",  TokenType.FALSE);
-        keywords.put("for",    TokenType.FOR);
-        keywords.put("fun",    TokenType.FUN);
-        keywords.put("if",     TokenType.IF);
-        keywords.put("nil",    TokenType.NIL);
-        keywords.put("or",     TokenType.OR);
-        keywords.put("print",  TokenType.PRINT);
-        keywords.put("return", TokenType.RETURN);
-        keywords.put("super",  TokenType.SUPER);
-        keywords.put("this",   TokenType.THIS);
-        keywords.put("true",   TokenType.TRUE);
-        keywords.put("var",    TokenType.VAR);
-        keywords.put("while",  TokenType.WHILE);
-      }
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++)
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i-1] * 10;
+    }
 
     private final String source;
-    private final List<Token> tokens = new ArrayList<>();
+    private final int end;
+    private final ErrorHandler errors;
+    private final NameTable names = new NameTable();
+    private TokenBuffer tokens;
 
     private int start = 0, current = 0, line = 1;
 
-    Scanner(String source) {
+    Scanner(String source, ErrorHandler errors) {
+        this(source, 0, source.length(), errors);
+    }
+
+    // Scans only source[from, to). Columns stay offsets into the whole source;
+    // lines are counted from 1 at `from`.
+    Scanner(String source, int from, int to, ErrorHandler errors) {
         this.source = source;
+        this.errors = errors;
+        this.start = from;
+        this.current = from;
+        this.end = to;
     }
 
     private boolean isAtEnd() {
-        return current >= source.length();
+        return current >= end;
     }
 
     private char advance() {
@@ -53,7 +50,7 @@ public class Scanner {
     }
 
     private char peekNext() {
-        if(isAtEnd() || current+1 >= source.length())
+        if(isAtEnd() || current+1 >= end)
             return '\0';
         return source.charAt(current+1);
     }
@@ -65,17 +62,14 @@ public class Scanner {
         return true;
     }
     
+    // Only the position is recorded; TokenBuffer derives lexeme and literal
+    // from the source on demand.
     private void addToken(TokenType type) {
-        addToken(type, null);
-    }
-
-    private void addToken(TokenType type, Object literal) {
-        String lexeme = source.substring(start, current);
-        tokens.add(new Token(type, lexeme, line, start+1, literal));
+        tokens.add(type, start, current - start, line);
     }
 
+    // Validates the literal; its value is decoded later by unescape().
     private void string() {
-        String value = "";
         boolean escCharError = false;
         while(peek() != '"' && peek() != '\n' && !isAtEnd()) {
             if(peek() == '\\'){
@@ -83,38 +77,21 @@ public class Scanner {
                 advance();
                 // consume next char & check if escape acceptable
                 char c = advance();
-                switch(c) {
-                    case '"' :
-                        value += '"';
-                        break;
-                    case '\\' :
-                        value += '\\';
-                        break;
-                    case 'n' :
-                        value += '\n';
-                        break;
-                    case 'r' :
-                        value += '\r';
-                        break;
-                    case 't' :
-                        value += '\t';
-                        break;
-                    default:
-                        ErrorHandler.error(line, start+1, "Illegal escape character in string literal.");
-                        escCharError = true;
-                        //return;
+                if(unescape(c) < 0) {
+                    errors.error(line, start+1, "Illegal escape character in string literal.");
+                    escCharError = true;
                 }
             }
             else
-                value += advance();
+                advance();
         }
         
         if(peek() == '\n') {
-            ErrorHandler.error(line, start+1, "Illegal new line character in string literal.");
+            errors.error(line, start+1, "Illegal new line character in string literal.");
             return;
         }
         if(isAtEnd()) {
-            ErrorHandler.error(line, start+1, "String literal not terminated properly.");
+            errors.error(line, start+1, "String literal not terminated properly.");
             return;
         }
 
@@ -122,8 +99,74 @@ public class Scanner {
         advance();
 
         if(!escCharError)
-            addToken(TokenType.STRING, value);
+            addToken(TokenType.STRING);
+
+    }
+
+    // Decodes the body of a string literal that string() accepted.
+    static String unescape(String source, int from, int to) {
+        // only look inside the literal, the rest of the source may be huge
+        int escape = from;
+        while(escape < to && source.charAt(escape) != '\\')
+            escape++;
+        if(escape == to)
+            return source.substring(from, to);
+
+        StringBuilder value = new StringBuilder(to - from);
+        for (int i = from; i < to; i++) {
+            char c = source.charAt(i);
+            if(c == '\\')
+                c = (char)unescape(source.charAt(++i));
+            value.append(c);
+        }
+        return value.toString();
+    }
+
+    // Value of a number literal that number() accepted ("12", "1.5", ".5"),
+    // read in place. With at most 15 significant digits and 22 decimals both
+    // the digits and the power of ten are exact doubles, so one correctly
+    // rounded division gives what Double.parseDouble would; longer literals
+    // are left to it.
+    static double parseNumber(String source, int from, int to) {
+        long digits = 0;
+        int significant = 0;
+        int decimals = 0;
+        boolean fraction = false;
+        for (int i = from; i < to; i++) {
+            char c = source.charAt(i);
+            if(c == '.') {
+                fraction = true;
+                continue;
+            }
+            if(fraction)
+                decimals++;
+            if(digits == 0 && c == '0')
+                continue;
+            digits = digits * 10 + (c - '0');
+            significant++;
+        }
 
+        if(significant > 15 || decimals >= POWERS_OF_TEN.length)
+            return Double.parseDouble(source.substring(from, to));
+        return digits / POWERS_OF_TEN[decimals];
+    }
+
+    // The character an escape sequence stands for, or -1 if it is illegal.
+    private static int unescape(char c) {
+        switch(c) {
+            case '"' :
+                return '"';
+            case '\\' :
+                return '\\';
+            case 'n' :
+                return '\n';
+            case 'r' :
+                return '\r';
+            case 't' :
+                return '\t';
+            default:
+                return -1;
+        }
     }
         
     private boolean number(boolean dot) {
@@ -133,7 +176,7 @@ public class Scanner {
         if(peek() == '.' && isDigit(peekNext())) {
             advance();
             if(dot) {
-                ErrorHandler.error(line, start+1, "Illegal character in number literal");
+                errors.error(line, start+1, "Illegal character in number literal");
                 return false;
             }
             else {
@@ -149,13 +192,52 @@ public class Scanner {
             advance();
             ch = peek();
         }
-            
 
-        String text = source.substring(start, current);
-        TokenType type = keywords.get(text);
-        if(type == null)
-            type = TokenType.IDENTIFIER;
-        addToken(type);
+        addToken(identifierType());
+    }
+
+    // Recognizes keywords on the source range: a switch on the first (and
+    // where needed second) character picks the only keyword it can be, whose
+    // remaining characters are then compared in place.
+    private TokenType identifierType() {
+        switch(source.charAt(start)) {
+            case 'a': return keyword(1, "nd", TokenType.AND);
+            case 'c': return keyword(1, "lass", TokenType.CLASS);
+            case 'e': return keyword(1, "lse", TokenType.ELSE);
+            case 'f':
+                if(current - start > 1) {
+                    switch(source.charAt(start+1)) {
+                        case 'a': return keyword(2, "lse", TokenType.FALSE);
+                        case 'o': return keyword(2, "r", TokenType.FOR);
+                        case 'u': return keyword(2, "n", TokenType.FUN);
+                    }
+                }
+                break;
+            case 'i': return keyword(1, "f", TokenType.IF);
+            case 'n': return keyword(1, "il", TokenType.NIL);
+            case 'o': return keyword(1, "r", TokenType.OR);
+            case 'p': return keyword(1, "rint", TokenType.PRINT);
+            case 'r': return keyword(1, "eturn", TokenType.RETURN);
+            case 's': return keyword(1, "uper", TokenType.SUPER);
+            case 't':
+                if(current - start > 1) {
+                    switch(source.charAt(start+1)) {
+                        case 'h': return keyword(2, "is", TokenType.THIS);
+                        case 'r': return keyword(2, "ue", TokenType.TRUE);
+                    }
+                }
+                break;
+            case 'v': return keyword(1, "ar", TokenType.VAR);
+            case 'w': return keyword(1, "hile", TokenType.WHILE);
+        }
+        return TokenType.IDENTIFIER;
+    }
+
+    private TokenType keyword(int offset, String rest, TokenType type) {
+        if(current - start == offset + rest.length()
+                && source.regionMatches(start + offset, rest, 0, rest.length()))
+            return type;
+        return TokenType.IDENTIFIER;
     }
 
     private boolean isDigit(char c) {
@@ -192,7 +274,7 @@ public class Scanner {
                 if(isDigit(peek())) {
                     //  a number can start with a period. In that case the token becomes a NUMBER
                     if(number(true))
-                        addToken(TokenType.NUMBER, Double.parseDouble(source.substring(start, current)));
+                        addToken(TokenType.NUMBER);
                 }                    
                 else
                     addToken(TokenType.DOT); 
@@ -251,25 +333,61 @@ public class Scanner {
             default : 
                 if(isDigit(c)) {
                     if(number(false))
-                        addToken(TokenType.NUMBER, Double.parseDouble(source.substring(start, current)));
+                        addToken(TokenType.NUMBER);
                 } else if (isAlpha(c)) {
                     identifier();
                 }
                 else {
-                    ErrorHandler.error(line, start+1, "Unexpected character!");
+                    errors.error(line, start+1, "Unexpected character!");
                 }
                 break;
         }
     }
 
-    public List<Token> scanTokens() {
+    // Number of lines scanned so far, counted the way token lines are.
+    int line() {
+        return line;
+    }
+
+    public TokenBuffer scanTokens() {
+        LoxEvents.Scan event = LoxEvents.scan();
+        int from = current;
+        // typical source has a token every three characters, counting spaces
+        tokens = new TokenBuffer(source, Math.max(64, (end - current) / 3), names);
 
         while(!isAtEnd()) {
             start = current;
             scanToken();
         }
 
-        tokens.add(new Token(TokenType.EOF, "", line+1, 1, null));
+        tokens.add(TokenType.EOF, end, 0, line+1);
+        if(event != null)
+            event.end(end - from, tokens.size());
         return tokens;
     }
+
+    // Streaming variant of scanTokens: hands the tokens over in batches of
+    // roughly batchSize as soon as they are scanned. The last batch ends with
+    // the EOF token.
+    void scanTokens(BlockingQueue<TokenBuffer> out, int batchSize) throws InterruptedException {
+        LoxEvents.Scan event = LoxEvents.scan();
+        int from = current;
+        int scanned = 0;
+        tokens = new TokenBuffer(source, batchSize + 1, names);
+        while(!isAtEnd()) {
+            start = current;
+            scanToken();
+            if(tokens.size() >= batchSize) {
+                scanned += tokens.size();
+                out.put(tokens);
+                tokens = new TokenBuffer(source, batchSize + 1, names);
+            }
+        }
+
+        tokens.add(TokenType.EOF, end, 0, line+1);
+        scanned += tokens.size();
+        out.put(tokens);
+        if(event != null)
+            event.end(end - from, scanned);
+    }
 }
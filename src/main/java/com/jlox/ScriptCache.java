@@ -0,0 +1,116 @@
+package com.jlox;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.zip.CRC32;
+
+// Persistent cache of parsed programs. Entries are named after the SHA-256 of
+// the interpreter version and the source, hold the AstCodec encoding behind a
+// small checked header, and are memory-mapped when read. A missing, stale or
+// corrupt entry simply reads as a miss, and the caller parses normally.
+class ScriptCache {
+
+    // Identifies the AST format; bump it whenever Expr, Stmt, Token or
+    // AstCodec change shape.
+    static final String VERSION = "javalox-1.0/ast-3";
+
+    private static final int MAGIC = 0x4a4c4f58; // "JLOX"
+    private static final int HEADER_SIZE = 4 * 4;
+    private static final int FORMAT = 1;
+
+    private final Path directory;
+
+    ScriptCache(Path directory) {
+        this.directory = directory;
+    }
+
+    // Returns the cached program for source, or null on any kind of miss.
+    List<Stmt> load(String source) {
+        Path entry = entry(source);
+        if(!Files.isRegularFile(entry))
+            return null;
+
+        try (FileChannel channel = FileChannel.open(entry, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if(buffer.remaining() < HEADER_SIZE
+                    || buffer.getInt() != MAGIC
+                    || buffer.getInt() != FORMAT)
+                return null;
+
+            int length = buffer.getInt();
+            int checksum = buffer.getInt();
+            if(length != buffer.remaining())
+                return null;
+
+            CRC32 crc = new CRC32();
+            crc.update(buffer.duplicate());
+            if((int)crc.getValue() != checksum)
+                return null;
+
+            return AstCodec.decode(buffer);
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    // Best effort: a cache that cannot be written is just a cache that misses.
+    void store(String source, List<Stmt> statements) {
+        try {
+            byte[] payload = AstCodec.encode(statements);
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(FORMAT).putInt(payload.length).putInt((int)crc.getValue());
+
+            Files.createDirectories(directory);
+            Path temp = Files.createTempFile(directory, "entry", ".tmp");
+            try {
+                try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                    header.flip();
+                    channel.write(new ByteBuffer[] { header, ByteBuffer.wrap(payload) });
+                }
+                move(temp, entry(source));
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        } catch (IOException | RuntimeException e) {
+            // leave the cache as it was
+        }
+    }
+
+    private static void move(Path from, Path to) throws IOException {
+        try {
+            Files.move(from, to, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(from, to, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private Path entry(String source) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(VERSION.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte)0);
+            digest.update(source.getBytes(StandardCharsets.UTF_8));
+
+            StringBuilder name = new StringBuilder(64 + 4);
+            for (byte b : digest.digest())
+                name.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            return directory.resolve(name.append(".ast").toString());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available.", e);
+        }
+    }
+}
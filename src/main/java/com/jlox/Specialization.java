@@ -0,0 +1,205 @@
+package com.jlox;
+
+// Execution state of an Expr.Binary or Expr.Unary site. A site starts out
+// UNINITIALIZED, rewrites its state to one specialized for the operand types
+// it first sees, and falls back to GENERIC for good once those types change.
+//
+// The state is an int every operator switches on, not a node object with a
+// virtual execute(): all sites share the one dispatch in Interpreter, so a
+// call there would see every node class and never be inlined, while the
+// switch is. Number states name their operator, so the unboxed path goes
+// from the state straight to the double instruction. On InterpreterBenchmark
+// (corpus=ARITH) the switch measures the same as the node classes it
+// replaced, within noise: what specializing buys is the unboxed path of
+// Interpreter.evaluateDouble, not faster dispatch.
+final class Specialization {
+
+    static final int UNINITIALIZED = 0;
+    static final int GENERIC = 1;
+    // number operands only; ADD to DIVIDE are the arithmetic states and
+    // LESS to GREATER_EQUAL the comparisons
+    static final int ADD = 2;
+    static final int SUBTRACT = 3;
+    static final int MULTIPLY = 4;
+    static final int DIVIDE = 5;
+    static final int LESS = 6;
+    static final int LESS_EQUAL = 7;
+    static final int GREATER = 8;
+    static final int GREATER_EQUAL = 9;
+    static final int NEGATE = 10;
+    // '+' on two strings
+    static final int CONCAT = 11;
+    // '!', which accepts any operand and never generalizes
+    static final int NOT = 12;
+
+    private Specialization() {
+    }
+
+    static boolean isArithmetic(int state) {
+        return state >= ADD && state <= DIVIDE;
+    }
+
+    static boolean isComparison(int state) {
+        return state >= LESS && state <= GREATER_EQUAL;
+    }
+
+    static Object binary(Expr.Binary site, Object left, Object right) {
+        switch(site.state) {
+            case UNINITIALIZED:
+                site.state = specialize(site.operator.type, left, right);
+                return binary(site, left, right);
+            case ADD:
+            case SUBTRACT:
+            case MULTIPLY:
+            case DIVIDE:
+                if(left instanceof Double && right instanceof Double)
+                    return arithmetic(site.state, (double)left, (double)right);
+                return generalize(site, left, right);
+            case LESS:
+            case LESS_EQUAL:
+            case GREATER:
+            case GREATER_EQUAL:
+                if(left instanceof Double && right instanceof Double)
+                    return compare(site.state, (double)left, (double)right);
+                return generalize(site, left, right);
+            case CONCAT:
+                if(left instanceof CharSequence && right instanceof CharSequence)
+                    return Rope.concat((CharSequence)left, (CharSequence)right);
+                return generalize(site, left, right);
+            default:
+                return generic(site.operator, left, right);
+        }
+    }
+
+    static Object unary(Expr.Unary site, Object right) {
+        switch(site.state) {
+            case UNINITIALIZED:
+                site.state = specialize(site.operator.type, right);
+                return unary(site, right);
+            case NEGATE:
+                if(right instanceof Double)
+                    return -(double)right;
+                return generalize(site, right);
+            case NOT:
+                return !Interpreter.isTruthy(right);
+            default:
+                return generic(site.operator, right);
+        }
+    }
+
+    // Sets the site to GENERIC and evaluates the operands that way.
+    static Object generalize(Expr.Binary site, Object left, Object right) {
+        site.state = GENERIC;
+        return generic(site.operator, left, right);
+    }
+
+    static Object generalize(Expr.Unary site, Object right) {
+        site.state = GENERIC;
+        return generic(site.operator, right);
+    }
+
+    static double arithmetic(int state, double left, double right) {
+        switch(state) {
+            case ADD:      return left + right;
+            case SUBTRACT: return left - right;
+            case MULTIPLY: return left * right;
+            case DIVIDE:   return left / right;
+            default:
+                throw new IllegalStateException("Not an arithmetic state: " + state + ".");
+        }
+    }
+
+    static boolean compare(int state, double left, double right) {
+        switch(state) {
+            case LESS:          return left < right;
+            case LESS_EQUAL:    return left <= right;
+            case GREATER:       return left > right;
+            case GREATER_EQUAL: return left >= right;
+            default:
+                throw new IllegalStateException("Not a comparison state: " + state + ".");
+        }
+    }
+
+    private static int specialize(TokenType operator, Object left, Object right) {
+        if(left instanceof Double && right instanceof Double) {
+            switch(operator) {
+                case PLUS:          return ADD;
+                case MINUS:         return SUBTRACT;
+                case STAR:          return MULTIPLY;
+                case SLASH:         return DIVIDE;
+                case LESS:          return LESS;
+                case LESS_EQUAL:    return LESS_EQUAL;
+                case GREATER:       return GREATER;
+                case GREATER_EQUAL: return GREATER_EQUAL;
+                default:
+            }
+        }
+        if(operator == TokenType.PLUS && left instanceof CharSequence && right instanceof CharSequence)
+            return CONCAT;
+
+        // equality and every operand mix that raises an error stay generic
+        return GENERIC;
+    }
+
+    private static int specialize(TokenType operator, Object right) {
+        if(operator == TokenType.MINUS && right instanceof Double)
+            return NEGATE;
+        if(operator == TokenType.BANG)
+            return NOT;
+        return GENERIC;
+    }
+
+    // The original operator semantics, including every runtime error.
+    static Object generic(Token operator, Object left, Object right) {
+        switch(operator.type) {
+            case EQUAL_EQUAL:
+                return Interpreter.isEqual(left, right);
+            case BANG_EQUAL:
+                return !Interpreter.isEqual(left, right);
+            case LESS:
+                Interpreter.checkNumberOperand(operator, left, right);
+                return (double)left < (double)right;
+            case LESS_EQUAL:
+                Interpreter.checkNumberOperand(operator, left, right);
+                return (double)left <= (double)right;
+            case GREATER:
+                Interpreter.checkNumberOperand(operator, left, right);
+                return (double)left > (double)right;
+            case GREATER_EQUAL:
+                Interpreter.checkNumberOperand(operator, left, right);
+                return (double)left >= (double)right;
+            case PLUS:
+                if (left instanceof Double && right instanceof Double)
+                    return (double)left + (double)right;
+                if (left instanceof CharSequence && right instanceof CharSequence)
+                    return Rope.concat((CharSequence)left, (CharSequence)right);
+                throw new RuntimeError(operator, "Operand must be two numbers or two strings.");
+            case MINUS:
+                Interpreter.checkNumberOperand(operator, left, right);
+                return (double)left - (double)right;
+            case STAR:
+                Interpreter.checkNumberOperand(operator, left, right);
+                return (double)left * (double)right;
+            case SLASH:
+                Interpreter.checkNumberOperand(operator, left, right);
+                return (double)left / (double)right;
+            default:
+        }
+
+        // should be unreachable
+        return null;
+    }
+
+    static Object generic(Token operator, Object right) {
+        switch(operator.type) {
+            case MINUS :
+                Interpreter.checkNumberOperand(operator, right);
+                return -(double)right;
+            case BANG:
+                return !Interpreter.isTruthy(right);
+            default:
+        }
+        // should be unreachable
+        return null;
+    }
+}
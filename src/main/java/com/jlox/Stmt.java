@@ -7,6 +7,7 @@ abstract class Stmt {
         R visitExpressionStmt(Expression stmt);
         R visitPrintStmt(Print stmt);
         R visitVarStmt(Var stmt);
+        R visitBlockStmt(Block stmt);
     }
     static class Expression extends Stmt {
         Expression(Expr expression) {
@@ -21,7 +22,8 @@ abstract class Stmt {
         final Expr expression;
     }
     static class Print extends Stmt {
-        Print(Expr expression) {
+        Print(Token keyword, Expr expression) {
+            this.keyword = keyword;
             this.expression = expression;
         }
 
@@ -30,6 +32,7 @@ abstract class Stmt {
             return visitor.visitPrintStmt(this);
         }
 
+        final Token keyword;
         final Expr expression;
     }
     static class Var extends Stmt {
@@ -45,7 +48,33 @@ abstract class Stmt {
 
         final Token name;
         final Expr initializer;
+        // frame slot when declared in a block, set by Resolver; -1 for globals
+        int slot = -1;
+    }
+    static class Block extends Stmt {
+        Block(List<Stmt> statements) {
+            this.statements = statements;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitBlockStmt(this);
+        }
+
+        final List<Stmt> statements;
+        // locals declared directly in the block, set by Resolver
+        int slots;
+        // runs by the tree, and the code the block was compiled to once
+        // hot, see Jit
+        int executions;
+        Jit.Code compiled;
     }
 
     abstract <R> R accept(Visitor<R> visitor);
+
+    // executions counted under --profile, see ProfilingInterpreter
+    long hits;
+    // set by Resolver when the statement's expression nests too deeply to be
+    // evaluated recursively, see Interpreter.evaluateDeep
+    boolean deep;
 }
@@ -0,0 +1,116 @@
+package com.jlox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Scanner output stored as parallel primitive arrays instead of one Token
+// object (plus lexeme substring) per token. Lexemes and literal values are
+// cut from the source only when asked for, which the parser does for the few
+// tokens that end up in the tree or in an error message. Columns are not
+// stored: a token's column is its offset in the source plus one, and 1 for
+// EOF.
+public class TokenBuffer {
+    private static final TokenType[] TYPES = TokenType.values();
+    private static final byte EOF = (byte)TokenType.EOF.ordinal();
+
+    private final String source;
+    private final NameTable names;
+    // the lexeme of every operator, keyword and EOF once seen; their
+    // spelling is fixed by the type
+    private final String[] spellings = new String[TYPES.length];
+    private byte[] types;
+    private int[] starts;
+    private int[] lengths;
+    private int[] lines;
+    private int size = 0;
+
+    TokenBuffer(String source) {
+        this(source, 64, new NameTable());
+    }
+
+    TokenBuffer(String source, int capacity, NameTable names) {
+        this.source = source;
+        this.names = names;
+        types = new byte[capacity];
+        starts = new int[capacity];
+        lengths = new int[capacity];
+        lines = new int[capacity];
+    }
+
+    void add(TokenType type, int start, int length, int line) {
+        if(size == types.length)
+            grow();
+        types[size] = (byte)type.ordinal();
+        starts[size] = start;
+        lengths[size] = length;
+        lines[size] = line;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    TokenType type(int index) {
+        return TYPES[types[index]];
+    }
+
+    int line(int index) {
+        return lines[index];
+    }
+
+    int column(int index) {
+        return types[index] == EOF ? 1 : starts[index] + 1;
+    }
+
+    String lexeme(int index) {
+        TokenType type = type(index);
+        if(type == TokenType.STRING || type == TokenType.NUMBER)
+            return source.substring(starts[index], starts[index] + lengths[index]);
+        if(type != TokenType.IDENTIFIER) {
+            String spelling = spellings[types[index]];
+            if(spelling == null)
+                spelling = spellings[types[index]] = names.intern(source, starts[index], lengths[index]);
+            return spelling;
+        }
+        // names repeat
+        return names.intern(source, starts[index], lengths[index]);
+    }
+
+    Object literal(int index) {
+        switch(type(index)) {
+            case NUMBER:
+                return Scanner.parseNumber(source, starts[index], starts[index] + lengths[index]);
+            case STRING:
+                // the lexeme includes both quotes
+                return Scanner.unescape(source, starts[index] + 1, starts[index] + lengths[index] - 1);
+            default:
+                return null;
+        }
+    }
+
+    void shiftLines(int offset) {
+        for (int i = 0; i < size; i++)
+            lines[i] += offset;
+    }
+
+    Token token(int index) {
+        return new Token(type(index), lexeme(index), lines[index], column(index), literal(index));
+    }
+
+    public List<Token> toList() {
+        List<Token> tokens = new ArrayList<>(size);
+        for (int i = 0; i < size; i++)
+            tokens.add(token(i));
+        return tokens;
+    }
+
+    private void grow() {
+        int capacity = types.length + (types.length >> 1);
+        types = Arrays.copyOf(types, capacity);
+        starts = Arrays.copyOf(starts, capacity);
+        lengths = Arrays.copyOf(lengths, capacity);
+        lines = Arrays.copyOf(lines, capacity);
+    }
+}
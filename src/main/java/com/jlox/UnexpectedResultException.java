@@ -0,0 +1,14 @@
+package com.jlox;
+
+// Thrown by Interpreter.evaluateDouble when an expression expected to produce
+// a number produced something else. Carries the boxed value so the caller can
+// continue on the generic path without evaluating the expression twice.
+@SuppressWarnings("serial")
+class UnexpectedResultException extends RuntimeException {
+    final Object value;
+
+    UnexpectedResultException(Object value) {
+        super(null, null, false, false);
+        this.value = value;
+    }
+}
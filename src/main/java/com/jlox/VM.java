@@ -0,0 +1,246 @@
+package com.jlox;
+
+// Stack-based virtual machine executing chunks produced by BytecodeCompiler.
+// Globals live in an Environment so the VM shares variable semantics (and
+// error messages) with the tree-walking Interpreter. Locals live on the
+// stack, below the temporaries of the statement being executed.
+public class VM {
+
+    private final Environment globals = new Environment();
+    private final OutputSink out;
+    private final ErrorHandler errors;
+
+    // added to LoxMetrics at the end of every run
+    private long executed = 0;
+    private long lookups = 0;
+
+    VM(OutputSink out, ErrorHandler errors) {
+        this.out = out;
+        this.errors = errors;
+    }
+
+    void interpret(Chunk chunk) {
+        try {
+            run(chunk);
+        } catch (RuntimeError error) {
+            errors.runtimeError(error);
+        } finally {
+            LoxMetrics.statements.add(executed);
+            LoxMetrics.lookups.add(lookups);
+            executed = 0;
+            lookups = 0;
+        }
+    }
+
+    private void run(Chunk chunk) {
+        final byte[] code = chunk.code;
+        final Token[] tokens = chunk.tokens;
+        final Object[] constants = chunk.constants();
+        final Object[] stack = new Object[Math.max(chunk.maxStack, 1)];
+        // global cells resolved so far, indexed by the name's constant index
+        final Environment.Cell[] cells = new Environment.Cell[constants.length];
+        int sp = 0;
+        int ip = 0;
+
+        while(true) {
+            int op = ip;
+            switch(code[ip++]) {
+                case OpCode.CONSTANT:
+                    stack[sp++] = constants[readShort(code, ip)];
+                    ip += 2;
+                    break;
+                case OpCode.CONSTANT_LONG:
+                    stack[sp++] = constants[readMedium(code, ip)];
+                    ip += 3;
+                    break;
+                case OpCode.NIL:
+                    stack[sp++] = null;
+                    break;
+                case OpCode.TRUE:
+                    stack[sp++] = true;
+                    break;
+                case OpCode.FALSE:
+                    stack[sp++] = false;
+                    break;
+                case OpCode.POP:
+                    // ends an expression statement
+                    executed++;
+                    stack[--sp] = null;
+                    break;
+                case OpCode.DEFINE_GLOBAL:
+                    executed++;
+                    globals.define((String)constants[readShort(code, ip)], stack[--sp]);
+                    stack[sp] = null;
+                    ip += 2;
+                    break;
+                case OpCode.DEFINE_GLOBAL_LONG:
+                    executed++;
+                    globals.define((String)constants[readMedium(code, ip)], stack[--sp]);
+                    stack[sp] = null;
+                    ip += 3;
+                    break;
+                case OpCode.GET_GLOBAL: {
+                    lookups++;
+                    int index = readShort(code, ip);
+                    Environment.Cell cell = cells[index];
+                    if(cell == null)
+                        cell = cells[index] = globals.cell(tokens[op]);
+                    stack[sp++] = cell.value;
+                    ip += 2;
+                    break;
+                }
+                case OpCode.GET_GLOBAL_LONG: {
+                    lookups++;
+                    int index = readMedium(code, ip);
+                    Environment.Cell cell = cells[index];
+                    if(cell == null)
+                        cell = cells[index] = globals.cell(tokens[op]);
+                    stack[sp++] = cell.value;
+                    ip += 3;
+                    break;
+                }
+                case OpCode.SET_GLOBAL: {
+                    int index = readShort(code, ip);
+                    Environment.Cell cell = cells[index];
+                    if(cell == null)
+                        cell = cells[index] = globals.cell(tokens[op]);
+                    cell.value = stack[sp-1];
+                    ip += 2;
+                    break;
+                }
+                case OpCode.SET_GLOBAL_LONG: {
+                    int index = readMedium(code, ip);
+                    Environment.Cell cell = cells[index];
+                    if(cell == null)
+                        cell = cells[index] = globals.cell(tokens[op]);
+                    cell.value = stack[sp-1];
+                    ip += 3;
+                    break;
+                }
+                case OpCode.GET_LOCAL:
+                    lookups++;
+                    stack[sp++] = stack[readShort(code, ip)];
+                    ip += 2;
+                    break;
+                case OpCode.SET_LOCAL:
+                    stack[readShort(code, ip)] = stack[sp-1];
+                    ip += 2;
+                    break;
+                case OpCode.END_BLOCK: {
+                    // the block and its declarations, which compile to no
+                    // instruction of their own
+                    int locals = readShort(code, ip);
+                    executed += locals + 1;
+                    while(locals-- > 0)
+                        stack[--sp] = null;
+                    ip += 2;
+                    break;
+                }
+                case OpCode.EQUAL: {
+                    Object right = stack[--sp];
+                    stack[sp-1] = Interpreter.isEqual(stack[sp-1], right);
+                    stack[sp] = null;
+                    break;
+                }
+                case OpCode.NOT_EQUAL: {
+                    Object right = stack[--sp];
+                    stack[sp-1] = !Interpreter.isEqual(stack[sp-1], right);
+                    stack[sp] = null;
+                    break;
+                }
+                case OpCode.GREATER: {
+                    Object right = stack[--sp];
+                    Object left = stack[sp-1];
+                    Interpreter.checkNumberOperand(tokens[op], left, right);
+                    stack[sp-1] = (double)left > (double)right;
+                    stack[sp] = null;
+                    break;
+                }
+                case OpCode.GREATER_EQUAL: {
+                    Object right = stack[--sp];
+                    Object left = stack[sp-1];
+                    Interpreter.checkNumberOperand(tokens[op], left, right);
+                    stack[sp-1] = (double)left >= (double)right;
+                    stack[sp] = null;
+                    break;
+                }
+                case OpCode.LESS: {
+                    Object right = stack[--sp];
+                    Object left = stack[sp-1];
+                    Interpreter.checkNumberOperand(tokens[op], left, right);
+                    stack[sp-1] = (double)left < (double)right;
+                    stack[sp] = null;
+                    break;
+                }
+                case OpCode.LESS_EQUAL: {
+                    Object right = stack[--sp];
+                    Object left = stack[sp-1];
+                    Interpreter.checkNumberOperand(tokens[op], left, right);
+                    stack[sp-1] = (double)left <= (double)right;
+                    stack[sp] = null;
+                    break;
+                }
+                case OpCode.ADD: {
+                    Object right = stack[--sp];
+                    Object left = stack[sp-1];
+                    if(left instanceof Double && right instanceof Double)
+                        stack[sp-1] = (double)left + (double)right;
+                    else if(left instanceof CharSequence && right instanceof CharSequence)
+                        stack[sp-1] = Rope.concat((CharSequence)left, (CharSequence)right);
+                    else
+                        throw new RuntimeError(tokens[op], "Operand must be two numbers or two strings.");
+                    stack[sp] = null;
+                    break;
+                }
+                case OpCode.SUBTRACT: {
+                    Object right = stack[--sp];
+                    Object left = stack[sp-1];
+                    Interpreter.checkNumberOperand(tokens[op], left, right);
+                    stack[sp-1] = (double)left - (double)right;
+                    stack[sp] = null;
+                    break;
+                }
+                case OpCode.MULTIPLY: {
+                    Object right = stack[--sp];
+                    Object left = stack[sp-1];
+                    Interpreter.checkNumberOperand(tokens[op], left, right);
+                    stack[sp-1] = (double)left * (double)right;
+                    stack[sp] = null;
+                    break;
+                }
+                case OpCode.DIVIDE: {
+                    Object right = stack[--sp];
+                    Object left = stack[sp-1];
+                    Interpreter.checkNumberOperand(tokens[op], left, right);
+                    stack[sp-1] = (double)left / (double)right;
+                    stack[sp] = null;
+                    break;
+                }
+                case OpCode.NOT:
+                    stack[sp-1] = !Interpreter.isTruthy(stack[sp-1]);
+                    break;
+                case OpCode.NEGATE:
+                    Interpreter.checkNumberOperand(tokens[op], stack[sp-1]);
+                    stack[sp-1] = -(double)stack[sp-1];
+                    break;
+                case OpCode.PRINT:
+                    executed++;
+                    out.println(Interpreter.stringify(stack[--sp]));
+                    stack[sp] = null;
+                    break;
+                case OpCode.RETURN:
+                    return;
+                default:
+                    throw new IllegalStateException("Unknown opcode " + code[op] + " at " + op + ".");
+            }
+        }
+    }
+
+    private static int readShort(byte[] code, int ip) {
+        return ((code[ip] & 0xff) << 8) | (code[ip+1] & 0xff);
+    }
+
+    private static int readMedium(byte[] code, int ip) {
+        return ((code[ip] & 0xff) << 16) | ((code[ip+1] & 0xff) << 8) | (code[ip+2] & 0xff);
+    }
+}
@@ -0,0 +1,127 @@
+package com.jlox;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeFalse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// --check on a temporary tree: which files are found, what each result holds
+// and the JSON it is reported as.
+class CheckerTest {
+
+    @TempDir
+    Path root;
+
+    @Test
+    void walksDirectoriesInPathOrderAndKeepsOtherPaths() throws IOException {
+        write("b.lox", "print 1;");
+        write("a/z.lox", "print 1;");
+        write("a/notes.txt", "not lox");
+        write("a/y.lox", "print 1;");
+        Path missing = root.resolve("missing.lox");
+
+        List<Path> files = Checker.files(List.of(root, missing));
+
+        assertEquals(List.of(root.resolve("a/y.lox"), root.resolve("a/z.lox"), root.resolve("b.lox"), missing), files);
+    }
+
+    @Test
+    void eachFileIsCheckedOnItsOwn() throws IOException {
+        Path clean = write("clean.lox", "var a = 1;\nprint a;\n");
+        Path broken = write("broken.lox", "print 1;\nvar = 2;\nprint (3;\n");
+        Path missing = root.resolve("missing.lox");
+
+        List<Checker.Result> results = Checker.check(List.of(broken, missing, clean));
+
+        assertEquals(3, results.size());
+        assertEquals(broken, results.get(0).path);
+        assertEquals(2, results.get(0).diagnostics.size());
+        assertEquals("Expect variable name.", results.get(0).diagnostics.get(0).message);
+        assertEquals("Expect ')' after expression.", results.get(0).diagnostics.get(1).message);
+        assertEquals(missing, results.get(1).path);
+        assertEquals(1, results.get(1).diagnostics.size());
+        assertTrue(results.get(1).diagnostics.get(0).message.startsWith("Cannot read file"));
+        assertEquals(clean, results.get(2).path);
+        assertTrue(results.get(2).diagnostics.isEmpty());
+        assertTrue(Checker.failed(results));
+        assertEquals(false, Checker.failed(List.of(results.get(2))));
+    }
+
+    @Test
+    void unreadableDirectoryIsReportedAndTheRestChecked() throws IOException {
+        Path good = write("good.lox", "print 1;");
+        Path locked = Files.createDirectory(root.resolve("locked"));
+        write("locked/hidden.lox", "print 1;");
+        Files.setPosixFilePermissions(locked, PosixFilePermissions.fromString("---------"));
+        try {
+            // permissions do not apply to root
+            assumeFalse(Files.isReadable(locked));
+
+            List<Path> files = Checker.files(List.of(root));
+            assertEquals(List.of(good, locked), files);
+            List<Checker.Result> results = Checker.check(files);
+            assertTrue(results.get(0).diagnostics.isEmpty());
+            assertTrue(results.get(1).diagnostics.get(0).message.startsWith("Cannot read directory"));
+        } finally {
+            Files.setPosixFilePermissions(locked, PosixFilePermissions.fromString("rwx------"));
+        }
+    }
+
+    @Test
+    void reportsJson() {
+        List<Checker.Result> results = List.of(
+                new Checker.Result(Path.of("ok.lox"), List.of()),
+                new Checker.Result(Path.of("bad.lox"), List.of(
+                        new ErrorHandler.Diagnostic(1, 7, "at end", "Expect ';' after value."),
+                        new ErrorHandler.Diagnostic(3, 1, "at '='", "Expect variable name."))));
+
+        assertEquals("{\n"
+                + "  \"files\": 2,\n"
+                + "  \"failed\": 1,\n"
+                + "  \"errors\": 2,\n"
+                + "  \"results\": [\n"
+                + "    {\"path\": \"ok.lox\", \"errors\": []},\n"
+                + "    {\"path\": \"bad.lox\", \"errors\": [\n"
+                + "      {\"line\": 1, \"column\": 7, \"where\": \"at end\", \"message\": \"Expect ';' after value.\"},\n"
+                + "      {\"line\": 3, \"column\": 1, \"where\": \"at '='\", \"message\": \"Expect variable name.\"}\n"
+                + "    ]}\n"
+                + "  ]\n"
+                + "}\n", report(results));
+        assertEquals("{\n  \"files\": 0,\n  \"failed\": 0,\n  \"errors\": 0,\n  \"results\": []\n}\n", report(List.of()));
+    }
+
+    @Test
+    void escapesStrings() {
+        List<Checker.Result> results = List.of(new Checker.Result(Path.of("q\"b\\.lox"), List.of(
+                new ErrorHandler.Diagnostic(1, 1, "at '\"\n'", "tab\there\r\u0001"))));
+
+        String json = report(results);
+
+        assertTrue(json.contains("{\"path\": \"q\\\"b\\\\.lox\""), json);
+        assertTrue(json.contains("\"where\": \"at '\\\"\\n'\", \"message\": \"tab\\there\\r\\u0001\"}"), json);
+    }
+
+    private Path write(String name, String source) throws IOException {
+        Path path = root.resolve(name);
+        Files.createDirectories(path.getParent());
+        return Files.writeString(path, source);
+    }
+
+    private static String report(List<Checker.Result> results) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OutputSink sink = OutputSink.of(out, OutputSink.BUFFER);
+        Checker.report(results, sink);
+        sink.flush();
+        return out.toString(Charset.defaultCharset());
+    }
+}
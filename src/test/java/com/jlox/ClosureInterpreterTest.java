@@ -0,0 +1,78 @@
+package com.jlox;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+// Runs one compiled program in several ClosureInterpreters, whose globals
+// hold numbers in one and strings in the next, and checks every run against
+// the tree: the closures start on the number path and have to generalize.
+class ClosureInterpreterTest {
+
+    private static final String PROGRAM = "{\n  var x = g + 1;\n  print x * 2;\n}\n"
+            + "print g + g;\nprint g < h;\nprint -g;\n";
+
+    @Test
+    void compiledProgramRunsInFreshInterpretersLikeTree() {
+        List<Stmt> statements = parse(PROGRAM);
+        ClosureInterpreter.Exec[] program = ClosureInterpreter.compile(statements);
+
+        for (String globals : List.of("var g = 1; var h = 2;", "var g = \"s\"; var h = 2;",
+                "var g = 3; var h = 2;", "var g = \"a\"; var h = \"b\";")) {
+            String expected = tree(globals, PROGRAM);
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            OutputSink sink = OutputSink.of(out, OutputSink.EXIT);
+            ClosureInterpreter interpreter = new ClosureInterpreter(sink, errors(sink, out));
+            interpreter.interpret(parse(globals));
+            interpreter.run(program);
+            sink.flush();
+
+            assertEquals(expected, out.toString(Charset.defaultCharset()), globals);
+        }
+    }
+
+    @Test
+    void plusOnStringsAndNumbersAtTheSameSite() {
+        String source = "var a = 1;\nvar b = 2;\nprint a + b;\na = \"x\";\nb = \"y\";\nprint a + b;\n";
+        List<Stmt> statements = parse(source);
+        ClosureInterpreter.Exec[] program = ClosureInterpreter.compile(statements);
+
+        for (int run = 0; run < 3; run++) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            OutputSink sink = OutputSink.of(out, OutputSink.EXIT);
+            new ClosureInterpreter(sink, errors(sink, out)).run(program);
+            sink.flush();
+            assertEquals("3\nxy\n", out.toString(Charset.defaultCharset()));
+        }
+    }
+
+    private static String tree(String globals, String source) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OutputSink sink = OutputSink.of(out, OutputSink.EXIT);
+        Interpreter interpreter = new Interpreter(sink, errors(sink, out), false);
+        interpreter.interpret(parse(globals));
+        interpreter.interpret(parse(source));
+        sink.flush();
+        return out.toString(Charset.defaultCharset());
+    }
+
+    // errors go to the same stream, after the output before them
+    private static ErrorHandler errors(OutputSink sink, ByteArrayOutputStream out) {
+        return new ErrorHandler(sink, new PrintStream(out, true, Charset.defaultCharset()));
+    }
+
+    private static List<Stmt> parse(String source) {
+        ErrorHandler errors = ErrorHandler.collecting();
+        List<Stmt> statements = new Parser(new Scanner(source, errors).scanTokens(), errors).parse();
+        new Resolver(errors).resolve(statements);
+        assertFalse(errors.hadError, source);
+        return statements;
+    }
+}
@@ -0,0 +1,199 @@
+package com.jlox;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.DynamicContainer;
+import org.junit.jupiter.api.DynamicNode;
+import org.junit.jupiter.api.DynamicTest;
+import org.junit.jupiter.api.TestFactory;
+import org.junit.jupiter.api.io.TempDir;
+
+// Runs every script in golden/ under each configuration a script can be run
+// with and compares stdout, stderr and the exit status with the script's
+// .expected file: the output, then the errors after a "--- stderr" line if
+// there are any, then "--- exit <status>". All configurations have to agree,
+// so a backend or pass that differs from the tree fails here.
+//
+// The deep and many-constant cases are generated, as they are too large to
+// keep as files.
+class GoldenTest {
+
+    private static final String STDERR = "--- stderr\n";
+    private static final String EXIT = "--- exit ";
+
+    // One way of running a script, named after the jlox flags it stands for.
+    private static final class Config {
+        final String name;
+        final LoxEngine.Backend backend;
+        final boolean optimize;
+        final boolean stream;
+        final boolean cache;
+
+        Config(String name, LoxEngine.Backend backend, boolean optimize, boolean stream, boolean cache) {
+            this.name = name;
+            this.backend = backend;
+            this.optimize = optimize;
+            this.stream = stream;
+            this.cache = cache;
+        }
+    }
+
+    private static final List<Config> CONFIGS = List.of(
+            new Config("--engine=tree", LoxEngine.Backend.TREE, false, false, false),
+            new Config("--engine=vm", LoxEngine.Backend.VM, false, false, false),
+            new Config("--engine=closure", LoxEngine.Backend.CLOSURE, false, false, false),
+            new Config("--engine=flat", LoxEngine.Backend.FLAT, false, false, false),
+            new Config("--optimize", LoxEngine.Backend.TREE, true, false, false),
+            new Config("--optimize --engine=vm", LoxEngine.Backend.VM, true, false, false),
+            new Config("--optimize --engine=closure", LoxEngine.Backend.CLOSURE, true, false, false),
+            new Config("--stream", LoxEngine.Backend.TREE, false, true, false),
+            new Config("--stream --engine=vm", LoxEngine.Backend.VM, false, true, false),
+            new Config("--stream --engine=closure", LoxEngine.Backend.CLOSURE, false, true, false),
+            new Config("--cache-dir", LoxEngine.Backend.TREE, false, false, true),
+            new Config("--cache-dir --optimize --engine=vm", LoxEngine.Backend.VM, true, false, true));
+
+    @TempDir
+    Path cacheDirectory;
+
+    @TestFactory
+    Stream<DynamicNode> scripts() throws IOException, URISyntaxException {
+        URL golden = GoldenTest.class.getResource("/golden");
+        List<Path> scripts;
+        try (Stream<Path> files = Files.list(Paths.get(golden.toURI()))) {
+            scripts = files.filter(path -> path.toString().endsWith(".lox")).sorted().collect(Collectors.toList());
+        }
+
+        List<DynamicNode> tests = new ArrayList<>();
+        for (Path script : scripts) {
+            String name = script.getFileName().toString();
+            String source = read(script);
+            String expected = read(script.resolveSibling(name.replace(".lox", ".expected")));
+            tests.add(container(name, source, expected));
+        }
+        return tests.stream();
+    }
+
+    @TestFactory
+    Stream<DynamicNode> deep() {
+        int n = 100_000;
+        List<DynamicNode> tests = new ArrayList<>();
+
+        StringBuilder chain = new StringBuilder("var a = 1;\nprint a");
+        for (int i = 1; i < n; i++)
+            chain.append(" + a");
+        tests.add(container("additions", chain.append(";\n").toString(), n + "\n" + EXIT + "0\n"));
+
+        String parentheses = "print " + "(".repeat(n / 2) + "1" + ")".repeat(n / 2) + ";\n";
+        tests.add(container("parentheses", parentheses, "1\n" + EXIT + "0\n"));
+
+        String negations = "print " + "-".repeat(n / 2 + 1) + "1;\n";
+        tests.add(container("negations", negations, "-1\n" + EXIT + "0\n"));
+
+        String assignments = "var a;\nprint a" + " = a".repeat(n / 2) + " = 1;\nprint a;\n";
+        tests.add(container("assignments", assignments, "1\n1\n" + EXIT + "0\n"));
+
+        StringBuilder locals = new StringBuilder("{\n    var b = 1;\n    b = b");
+        for (int i = 1; i < n; i++)
+            locals.append(i % 2 == 0 ? " + b" : " * b");
+        tests.add(container("locals", locals.append(";\n    print b;\n}\n").toString(),
+                n / 2 + "\n" + EXIT + "0\n"));
+
+        StringBuilder error = new StringBuilder("print \"before\";\nprint 1");
+        for (int i = 1; i < n; i++)
+            error.append(" + 1");
+        error.append(" + \"x\";\nprint \"after\";\n");
+        int column = error.lastIndexOf("+") + 1;
+        tests.add(container("runtime error", error.toString(), "before\n" + STDERR
+                + "[line 2, column " + column + "] Error: Operand must be two numbers or two strings.\n"
+                + EXIT + "70\n"));
+
+        return tests.stream();
+    }
+
+    // More distinct literals and names than a u16 constant index can address,
+    // so the VM has to use its long instructions for the later ones.
+    @TestFactory
+    Stream<DynamicNode> constants() {
+        int n = 35_000;
+        StringBuilder source = new StringBuilder();
+        for (int i = 0; i < n; i++)
+            source.append("var v").append(i).append(" = ").append(i).append(".5;\n");
+        String last = "v" + (n - 1);
+        source.append(last).append(" = ").append(last).append(" + v0 + 0.25;\n");
+        source.append("print ").append(last).append(";\nprint v0;\n");
+        return Stream.of(container("70,000 constants", source.toString(),
+                n + ".25\n0.5\n" + EXIT + "0\n"));
+    }
+
+    // Scan and parse errors spread over many token and statement batches, so
+    // --stream finds them while its scanner and parser are both running.
+    @TestFactory
+    Stream<DynamicNode> errors() {
+        StringBuilder source = new StringBuilder();
+        StringBuilder scanErrors = new StringBuilder();
+        StringBuilder parseErrors = new StringBuilder();
+        for (int line = 1; line <= 8000; line++) {
+            int start = source.length();
+            if(line % 400 == 100) {
+                source.append("print @1;\n");
+                scanErrors.append("[line ").append(line).append(", column ").append(start + 7)
+                        .append("] Error : Unexpected character!\n");
+            } else if(line % 400 == 300) {
+                source.append("var = 1;\n");
+                parseErrors.append("[line ").append(line).append(", column ").append(start + 5)
+                        .append("] Error  at '=': Expect variable name.\n");
+            } else
+                source.append("print 1;\n");
+        }
+        return Stream.of(container("scan and parse errors", source.toString(),
+                STDERR + scanErrors + parseErrors + EXIT + "65\n"));
+    }
+
+    private DynamicContainer container(String name, String source, String expected) {
+        return DynamicContainer.dynamicContainer(name, CONFIGS.stream().map(config ->
+                DynamicTest.dynamicTest(config.name, () -> {
+                    assertEquals(expected, run(config, source), config.name);
+                    // the second run reads the tree the first one stored
+                    if(config.cache)
+                        assertEquals(expected, run(config, source), config.name + ", cached");
+                })));
+    }
+
+    private String run(Config config, String source) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        LoxEngine engine = new LoxEngine(config.backend, config.optimize, config.cache ? cacheDirectory : null);
+        LoxContext context = engine.newContext(OutputSink.of(out, OutputSink.EXIT),
+                new PrintStream(err, true, Charset.defaultCharset()), false);
+        int status = config.stream ? context.stream(source) : context.run(source);
+
+        String errors = err.toString(Charset.defaultCharset());
+        return out.toString(Charset.defaultCharset())
+                + (errors.isEmpty() ? "" : STDERR + errors)
+                + EXIT + status + "\n";
+    }
+
+    private static String read(Path path) {
+        try (InputStream in = Files.newInputStream(path)) {
+            return new String(in.readAllBytes(), Charset.defaultCharset());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
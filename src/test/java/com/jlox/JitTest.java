@@ -0,0 +1,145 @@
+package com.jlox;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+// Runs one parsed block over and over in an Interpreter with compilation on,
+// changing the globals it reads from outside, and checks that the compiled
+// code prints and fails exactly like the tree while it is compiled, dropped
+// and compiled again.
+class JitTest {
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream err = new ByteArrayOutputStream();
+    private final OutputSink sink = OutputSink.of(out, OutputSink.EXIT);
+    private final ErrorHandler errors = new ErrorHandler(sink, new PrintStream(err, true, Charset.defaultCharset()));
+    private final Interpreter interpreter = new Interpreter(sink, errors, true);
+
+    @Test
+    void guardFailureDeoptimizesAndBlockIsCompiledAgain() {
+        run("var g = 1;");
+        List<Stmt> program = parse("{ var x = g; print x + x; }");
+        Stmt.Block block = (Stmt.Block)program.get(0);
+
+        for (int i = 1; i < Jit.THRESHOLD; i++) {
+            assertEquals("2\n", run(program));
+            assertNull(block.compiled, "compiled after " + i + " runs");
+        }
+        assertEquals("2\n", run(program));
+        Jit.Code code = block.compiled;
+        assertNotNull(code, "compiled once hot");
+        assertEquals(Specialization.ADD, ((Expr.Binary)((Stmt.Print)block.statements.get(1)).expression).state);
+
+        // strings fail the guard on the number-only '+': the operation
+        // finishes generically and the tree takes over
+        run("g = \"a\";");
+        assertEquals("aa\n", run(program));
+        assertNull(block.compiled, "dropped after the guard failed");
+        assertTrue(code.invalid);
+
+        for (int i = 1; i < Jit.THRESHOLD; i++) {
+            assertEquals("aa\n", run(program));
+            assertNull(block.compiled, "compiled again after " + i + " runs");
+        }
+        assertEquals("aa\n", run(program));
+        Jit.Code recompiled = block.compiled;
+        assertNotNull(recompiled, "compiled again once hot");
+
+        // the site is generic now, so numbers pass without a guard
+        run("g = 2;");
+        assertEquals("4\n", run(program));
+        assertSame(recompiled, block.compiled);
+        assertFalse(recompiled.invalid);
+        assertEquals("", err.toString(Charset.defaultCharset()));
+    }
+
+    @Test
+    void runtimeErrorFromCompiledCodeMatchesTree() {
+        String block = "{\n  var x = g;\n  print \"start\";\n  print x * 2;\n  print \"end\";\n}";
+        String expected = "start\n[line 4, column 43] Error: Operand must be a number.\n";
+
+        run("var g = 1;");
+        List<Stmt> program = parse(block);
+        for (int i = 0; i < Jit.THRESHOLD; i++)
+            assertEquals("start\n2\nend\n", run(program));
+        assertNotNull(((Stmt.Block)program.get(0)).compiled);
+
+        run("g = \"s\";");
+        assertEquals(expected, run(program));
+        assertTrue(errors.hadRuntimeError);
+        assertNull(((Stmt.Block)program.get(0)).compiled, "dropped after the error");
+
+        // the same sequence on the tree
+        Interpreter tree = new Interpreter(sink, errors, false);
+        tree.interpret(parse("var g = \"s\";"));
+        tree.interpret(parse(block));
+        assertEquals(expected, output());
+
+        // the block still runs after the error
+        errors.reset();
+        run("g = 3;");
+        assertEquals("start\n6\nend\n", run(program));
+    }
+
+    @Test
+    void runtimeErrorInNegationFromCompiledCode() {
+        run("var g = 1;");
+        List<Stmt> program = parse("{ var x = g; print -x; print x; }");
+        for (int i = 0; i < Jit.THRESHOLD; i++)
+            assertEquals("-1\n1\n", run(program));
+        assertNotNull(((Stmt.Block)program.get(0)).compiled);
+
+        run("g = nil;");
+        assertEquals("[line 1, column 20] Error: Operand must be a number.\n", run(program));
+    }
+
+    @Test
+    void blockTooLargeStaysOnTreeAndNestedBlockIsCompiled() {
+        String source = "{ var x = 0; " + "x = x + 1; ".repeat(2000) + "{ var y = x; print y; } }";
+        List<Stmt> program = parse(source);
+        Stmt.Block outer = (Stmt.Block)program.get(0);
+        Stmt.Block inner = (Stmt.Block)outer.statements.get(outer.statements.size() - 1);
+
+        for (int i = 0; i <= Jit.THRESHOLD; i++)
+            assertEquals("2000\n", run(program));
+        assertNull(outer.compiled, "too large to compile");
+        assertNotNull(inner.compiled, "compiled on its own");
+        assertEquals("2000\n", run(program));
+    }
+
+    private List<Stmt> parse(String source) {
+        List<Stmt> statements = new Parser(new Scanner(source, errors).scanTokens(), errors).parse();
+        new Resolver(errors).resolve(statements);
+        assertFalse(errors.hadError, source);
+        return statements;
+    }
+
+    private String run(String source) {
+        return run(parse(source));
+    }
+
+    // What the run printed, errors included.
+    private String run(List<Stmt> statements) {
+        interpreter.interpret(statements);
+        return output();
+    }
+
+    private String output() {
+        sink.flush();
+        String text = out.toString(Charset.defaultCharset()) + err.toString(Charset.defaultCharset());
+        out.reset();
+        err.reset();
+        return text;
+    }
+}
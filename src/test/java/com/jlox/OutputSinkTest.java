@@ -0,0 +1,39 @@
+package com.jlox;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+
+import org.junit.jupiter.api.Test;
+
+// Checks when print output reaches the stream: never more than BUFFER
+// characters are held back, whatever the threshold.
+class OutputSinkTest {
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    @Test
+    void exitWritesOnlyWhenFlushedWhileBelowBuffer() {
+        OutputSink sink = OutputSink.of(out, OutputSink.EXIT);
+        sink.println("a");
+        sink.println("b");
+        assertEquals(0, out.size());
+        sink.flush();
+        assertEquals("a\nb\n", out.toString(Charset.defaultCharset()));
+    }
+
+    @Test
+    void exitIsCappedAtBuffer() {
+        OutputSink sink = OutputSink.of(out, OutputSink.EXIT);
+        String line = "x".repeat(99);
+        int lines = 0;
+        while(out.size() == 0) {
+            sink.println(line);
+            lines++;
+        }
+        assertEquals(OutputSink.BUFFER / 100 + 1, lines);
+        assertTrue(out.size() > OutputSink.BUFFER);
+    }
+}
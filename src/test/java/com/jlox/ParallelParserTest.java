@@ -0,0 +1,98 @@
+package com.jlox;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+
+// Parses with chunks a few statements long, so sources of a few lines take
+// the multi-chunk path, and checks the result against the sequential parse:
+// the same statements, lines and output, or the same diagnostics.
+class ParallelParserTest {
+
+    private static final int[] CHUNK_SIZES = { 1, 10, 25 };
+
+    @Test
+    void splitsOnlyAfterTopLevelSemicolons() {
+        String source = "print \"a;b\";\n// c;d\nprint (1\n;);\n{ print 2; }\nprint \"e\\\";\";\nprint 3;";
+        List<Integer> bounds = ParallelParser.split(source, 1);
+
+        // nothing after the block, whose ';' is inside braces
+        assertEquals(List.of(0, source.indexOf("\n// c"), source.indexOf("\n{"),
+                source.indexOf("\nprint 3"), source.length()), bounds);
+    }
+
+    @Test
+    void chunksParseLikeTheWholeSource() {
+        String source = "var a = 1;\nvar b = \"x\";\n{\n  var c = a + 2;\n  print c;\n}\n"
+                + "a = a * 3; print a;\n// a comment; with a semicolon\nprint b + \";\";\nprint (a\n+\n1);\n";
+        for (int size : CHUNK_SIZES) {
+            assertTrue(ParallelParser.split(source, size).size() > 2, "chunks of " + size);
+            assertEquals(run(source, Integer.MAX_VALUE), run(source, size), "chunks of " + size);
+        }
+        assertEquals("3\n3\nx;\n4\n", run(source, 1));
+    }
+
+    @Test
+    void linesContinueAcrossChunks() {
+        // the runtime error is in the last chunk, after statements and
+        // comments spanning lines
+        String source = "print 1;\nprint (2\n+\n3);\n// four;\nprint 4;\n\nprint -\"x\";\n";
+        for (int size : CHUNK_SIZES)
+            assertEquals(run(source, Integer.MAX_VALUE), run(source, size), "chunks of " + size);
+        assertEquals("1\n5\n4\n[line 8, column 50] Error: Operand must be a number.\n", run(source, 1));
+    }
+
+    @Test
+    void errorsInSeveralChunksAreReportedAsSequentially() {
+        // a scan error, then parse errors right before and after chunk boundaries
+        String source = "print 1;\nprint @;\nprint 2;\nvar = 3;\nprint 4;\nprint (5;\nprint 6;\n1 = 2;\n";
+        for (int size : CHUNK_SIZES) {
+            assertTrue(ParallelParser.split(source, size).size() > 2, "chunks of " + size);
+            assertEquals(diagnostics(source, Integer.MAX_VALUE), diagnostics(source, size), "chunks of " + size);
+        }
+        assertEquals(List.of(
+                "2:16 : Unexpected character!",
+                "2:17 at ';': Expect expression.",
+                "4:32 at '=': Expect variable name.",
+                "6:54 at ';': Expect ')' after expression.",
+                "8:67 at '=': Invalid assignment target."), diagnostics(source, 1));
+    }
+
+    @Test
+    void errorAtTheEndOfTheLastChunk() {
+        String source = "print 1;\nprint 2;\nprint \"open\n";
+        assertTrue(ParallelParser.split(source, 1).size() > 2);
+        assertEquals(diagnostics(source, Integer.MAX_VALUE), diagnostics(source, 1));
+        assertFalse(diagnostics(source, 1).isEmpty());
+    }
+
+    // Parses with the given chunk size and runs the result: output, then
+    // errors.
+    private static String run(String source, int chunkSize) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OutputSink sink = OutputSink.of(out, OutputSink.EXIT);
+        ErrorHandler errors = new ErrorHandler(sink, new PrintStream(out, true, Charset.defaultCharset()));
+        List<Stmt> statements = ParallelParser.parse(source, chunkSize, errors);
+        assertFalse(errors.hadError, source);
+        new Resolver(errors).resolve(statements);
+        new Interpreter(sink, errors, false).interpret(statements);
+        sink.flush();
+        return out.toString(Charset.defaultCharset());
+    }
+
+    private static List<String> diagnostics(String source, int chunkSize) {
+        ErrorHandler errors = ErrorHandler.collecting();
+        ParallelParser.parse(source, chunkSize, errors);
+        return errors.diagnostics().stream()
+                .map(d -> d.line + ":" + d.column + " " + d.where + ": " + d.message)
+                .collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,67 @@
+package com.jlox;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+// Pipeline's own threads: they have to stop when the executing side does,
+// whatever way it stops.
+class PipelineTest {
+
+    // long enough that the scanner and parser fill their queues and block
+    private static final String SOURCE = "print 1;\n".repeat(200_000);
+
+    @Test
+    void exceptionFromExecutorStopsFrontEnd() throws InterruptedException {
+        IllegalStateException thrown = assertThrows(IllegalStateException.class, () ->
+                Pipeline.run(SOURCE, ErrorHandler.silent(), batch -> {
+                    throw new IllegalStateException("executor failed");
+                }));
+        assertEquals("executor failed", thrown.getMessage());
+        assertFrontEndStops();
+    }
+
+    @Test
+    void runtimeErrorStopsFrontEnd() throws InterruptedException {
+        ErrorHandler errors = ErrorHandler.silent();
+        int[] batches = new int[1];
+        Pipeline.run(SOURCE, errors, batch -> {
+            batches[0]++;
+            errors.runtimeError(new RuntimeError(new Token(TokenType.PRINT, "print", 1, 1, null), "stop"));
+        });
+        assertEquals(1, batches[0]);
+        assertFrontEndStops();
+    }
+
+    @Test
+    void allStatementsReachExecutorInOrder() {
+        int[] statements = new int[1];
+        Pipeline.run(SOURCE, ErrorHandler.silent(), batch -> {
+            for (Stmt statement : batch) {
+                assertEquals(1.0, ((Expr.Literal)((Stmt.Print)statement).expression).value);
+                statements[0]++;
+            }
+        });
+        assertEquals(200_000, statements[0]);
+    }
+
+    private static void assertFrontEndStops() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while(System.nanoTime() < deadline && frontEndRunning())
+            Thread.sleep(10);
+        assertFalse(frontEndRunning(), "scanner or parser thread still running");
+    }
+
+    private static boolean frontEndRunning() {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if(List.of("lox-scanner", "lox-parser").contains(thread.getName()) && thread.isAlive())
+                return true;
+        }
+        return false;
+    }
+}
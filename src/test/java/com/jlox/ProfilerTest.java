@@ -0,0 +1,58 @@
+package com.jlox;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+// Profiles a script whose second line holds almost all of the work and checks
+// the report: exact execution counts, and that line on top.
+class ProfilerTest {
+
+    private static final int STATEMENTS = 200_000;
+    private static final String SOURCE = "var a = 0;\n" + "a = a + 1; ".repeat(STATEMENTS) + "\nprint a;\n";
+
+    @Test
+    void hotLineTopsTheReport() {
+        assertHotLine(false);
+    }
+
+    // --stream runs every 128 statements as a run of their own
+    @Test
+    void hotLineTopsTheReportWhenStreamed() {
+        assertHotLine(true);
+    }
+
+    private static void assertHotLine(boolean stream) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        LoxContext context = new LoxEngine().newContext(OutputSink.of(out, OutputSink.BUFFER),
+                new PrintStream(new ByteArrayOutputStream(), true, Charset.defaultCharset()), false);
+        Profiler profiler = context.profile();
+
+        int runs = 3;
+        for (int i = 0; i < runs; i++) {
+            context.reset();
+            assertEquals(LoxContext.OK, stream ? context.stream(SOURCE) : context.run(SOURCE));
+        }
+        profiler.stop();
+        assertEquals((STATEMENTS + "\n").repeat(runs), out.toString(Charset.defaultCharset()));
+
+        ByteArrayOutputStream report = new ByteArrayOutputStream();
+        profiler.report(new PrintStream(report, true, Charset.defaultCharset()));
+        List<String> lines = report.toString(Charset.defaultCharset()).lines().toList();
+
+        String[] header = lines.get(0).split(" ");
+        assertTrue(Integer.parseInt(header[1]) > 0, lines.get(0));
+        // the first row after the header is the hottest line
+        String[] hottest = lines.get(3).trim().split("\\s+");
+        assertEquals("2", hottest[0], String.join("\n", lines));
+        assertEquals(String.valueOf(STATEMENTS * runs), hottest[1]);
+        // most samples land on it; the rest fall between statements
+        assertTrue(Double.parseDouble(hottest[3].replace("%", "")) > 50, String.join("\n", lines));
+    }
+}